@@ -23,16 +23,24 @@ package birch;
 import java.net.Socket;
 import java.net.SocketException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  *
@@ -40,36 +48,129 @@ import java.nio.charset.Charset;
  */
 public abstract class AbstractFilteredConnection extends Thread {
 
+   public static final int READ_BUFFER_SIZE = 8192;
+   /** The characters which must be encoded as in ASCII to pass lines undecoded. */
+   private static final String ASCII = "\r\n :0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
    private volatile boolean running;
+   private final ReentrantLock pauseLock = new ReentrantLock();
+   private final Condition resumed = pauseLock.newCondition();
+   /** Guarded by pauseLock, the number of reasons to pause. */
+   private int paused;
 
    private String charset;
+   private Charset lineCharset;
+   /** The line end of {@link #output} encoded. */
+   private byte[] lineSeparator;
+   /** Whether lines no filter handles may pass undecoded. */
+   private boolean undecoded;
    private Socket socket;
+   private Transport transport;
+   private OutboundQueue outputStream;
+   private CoalescingWriter writer;
    private PrintWriter output;
 
-   public AbstractFilteredConnection(Socket socket) throws IOException {
-      this(socket, Charset.defaultCharset().displayName());
+   // Only touched by the reading thread
+   private LineFramer framer;
+   private boolean relaying = true;
+   private boolean lineEnd = true;
+   private boolean skipLF;
+   /** The lines of one read. */
+   private final List<String> batch = new ArrayList<String>();
+
+   private final LineFramer.Handler lineHandler = new LineFramer.Handler() {
+
+      public void line(byte[] bytes, int offset, int length) {
+         try {
+            parse(bytes, offset, length);
+         } catch (RuntimeException ex) {
+            Logger.getLogger(AbstractFilteredConnection.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+         }
+      }
+   };
+
+   /** Writes the lines handed to it to the output. */
+   private final LineSink outputSink = new LineSink() {
+
+      public void line(String line) {
+         output.println(line);
+      }
+   };
+
+   public AbstractFilteredConnection(Socket socket, Transport transport, Proxy.Config config) throws IOException {
+      this(socket, config.getCharset(), transport, config);
    }
 
-   public AbstractFilteredConnection(Socket socket, String charset) throws IOException {
+   public AbstractFilteredConnection(Socket socket, String charset, Transport transport, Proxy.Config config)
+           throws IOException {
       this.socket = socket;
       this.charset = charset;
-      output = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), charset), true);
+      this.lineCharset = Charset.forName(charset);
+      this.lineSeparator = System.lineSeparator().getBytes(lineCharset);
+      this.undecoded = Arrays.equals(ASCII.getBytes(lineCharset), ASCII.getBytes(StandardCharsets.US_ASCII));
+      this.transport = transport;
+      framer = new LineFramer(config.getMaxLineLength());
+      outputStream = transport.getOutputStream(socket);
+      outputStream.setWatermarks(config.getQueueLowWatermark(), config.getQueueHighWatermark(),
+              new OutboundQueue.Listener() {
+
+                 public void high() {
+                    AbstractFilteredConnection peer;
+
+                    peer = getPeer();
+                    if (peer != null) {
+                       Logger.getLogger(AbstractFilteredConnection.class.getName()).log(Level.FINE,
+                               "output of " + AbstractFilteredConnection.this + " lags, pause " + peer);
+                       peer.pauseReading();
+                    }
+                 }
+
+                 public void low() {
+                    AbstractFilteredConnection peer;
+
+                    peer = getPeer();
+                    if (peer != null) {
+                       peer.resumeReading();
+                    }
+                 }
+              });
+      writer = new CoalescingWriter(
+                 outputStream,
+                 lineCharset,
+                 config.getFlushDelay(),
+                 config.getFlushThreshold()
+              );
+      output = new PrintWriter(writer);
    }
 
    @Override
    public void run() {
       try {
-         BufferedReader input;
-         String line;
+         InputStream input;
+         byte[] bytes;
+         ByteBuffer buffer;
+         int count;
+
+         input = socket.getInputStream();
+         bytes = new byte[READ_BUFFER_SIZE];
+         buffer = ByteBuffer.wrap(bytes);
 
-         input = new BufferedReader(new InputStreamReader(socket.getInputStream(), charset));
          running = true;
          while (running && !isInterrupted()) {
-            line = input.readLine();
-            if (line == null) {
+            awaitReading();
+            if (!running) {
+               break;
+            }
+            count = input.read(bytes);
+            if (count < 0) {
                running = false;
             } else {
-               parse(line);
+               buffer.clear();
+               buffer.limit(count);
+               read(buffer);
+               if (input.available() == 0) {
+                  drained();
+               }
             }
          }
          close();
@@ -81,47 +182,269 @@ public abstract class AbstractFilteredConnection extends Thread {
       }
    }
 
-   public void close() {
-      running = false;
+   /**
+    * Relay or parse the bytes read.
+    * @param buffer a heap buffer with the bytes from the position to the limit.
+    */
+   protected void read(ByteBuffer buffer) throws IOException {
+      int length;
 
-      if (!socket.isInputShutdown()) {
-         try {
-            socket.shutdownInput();
-         } catch (IOException ex) {
-            Logger.getLogger(AbstractFilteredConnection.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
-         }
+      length = getRelayLength(buffer);
+      if (length > 0) {
+         getPeer().relay(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+         buffer.position(buffer.position() + length);
+      }
+      if (buffer.hasRemaining()) {
+         framer.frame(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit(),
+                 lineHandler);
+         buffer.position(buffer.limit());
       }
-      if (!socket.isOutputShutdown()) {
+      parseBatch();
+   }
+
+   /**
+    * Parse the lines decoded so far.
+    */
+   private void parseBatch() {
+      if (!batch.isEmpty()) {
          try {
-            socket.shutdownOutput();
-         } catch (IOException ex) {
-            Logger.getLogger(AbstractFilteredConnection.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+            parse(batch);
+         } catch (RuntimeException ex) {
+            Logger.getLogger(AbstractFilteredConnection.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+         } finally {
+            batch.clear();
          }
       }
-      if (!socket.isClosed()) {
-         try {
-            try {
-               sleep(100);
-            } catch (InterruptedException ex) {
-               Logger.getLogger(AbstractFilteredConnection.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+   }
+
+   /**
+    * Decide how much of the input read is copied unparsed to the peer. Once a
+    * filter is set for a relaying connection, the line relayed last is
+    * completed and all following lines are parsed.
+    *
+    * @param buffer the bytes read, from the position to the limit.
+    * @return the number of bytes from the position to copy to the peer.
+    */
+   protected int getRelayLength(ByteBuffer buffer) {
+      int end;
+      byte b;
+
+      if (!relaying || getPeer() == null || framer.hasPartialLine()) {
+         // not connected yet or a parsed line to complete first
+         return 0;
+      }
+
+      if (isPassthrough()) {
+         end = buffer.limit();
+         if (end > buffer.position()) {
+            b = buffer.get(end - 1);
+            lineEnd = b == '\n' || b == '\r';
+            skipLF = b == '\r';
+         }
+      } else {
+         end = buffer.position();
+         while (end < buffer.limit()) {
+            b = buffer.get(end);
+            if (lineEnd) {
+               if (skipLF && b == '\n') {
+                  skipLF = false;
+                  ++end;
+                  continue;
+               }
+               break;
             }
-            socket.close();
-         } catch (IOException ex) {
-            Logger.getLogger(ClientConnection.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+            lineEnd = b == '\n' || b == '\r';
+            skipLF = b == '\r';
+            ++end;
+         }
+         if (lineEnd && (end < buffer.limit() || !skipLF)) {
+            relaying = false;
+         }
+      }
+
+      return end - buffer.position();
+   }
+
+   /**
+    * @return TRUE as long as the input is copied unparsed to the peer.
+    */
+   protected boolean isRelaying() {
+      return relaying;
+   }
+
+   /**
+    * Write bytes relayed from the peer unchanged.
+    */
+   protected void relay(byte[] bytes, int offset, int length) throws IOException {
+      output.flush();
+      outputStream.write(bytes, offset, length);
+      outputStream.flush();
+   }
+
+   /**
+    * Write a line of the peer which no filter handles as it was read.
+    */
+   protected void println(byte[] bytes, int offset, int length) {
+      try {
+         writer.writeEncoded(bytes, offset, length);
+         writer.writeEncoded(lineSeparator, 0, lineSeparator.length);
+      } catch (IOException ex) {
+         Logger.getLogger(AbstractFilteredConnection.class.getName()).log(Level.FINE, ex.getLocalizedMessage(), ex);
+      }
+   }
+
+   /**
+    * Stop reading from the socket until {@link #resumeReading()}. Reading
+    * starts again when it was resumed as often as it was paused.
+    */
+   protected void pauseReading() {
+      pauseLock.lock();
+      try {
+         if (paused++ == 0) {
+            transport.setReading(this, false);
+         }
+      } finally {
+         pauseLock.unlock();
+      }
+   }
+
+   protected void resumeReading() {
+      pauseLock.lock();
+      try {
+         if (--paused == 0) {
+            resumed.signalAll();
+            transport.setReading(this, true);
          }
+      } finally {
+         pauseLock.unlock();
       }
    }
 
+   /** Wait while reading is paused, the reading thread of a blocking socket. */
+   private void awaitReading() {
+      pauseLock.lock();
+      try {
+         while (paused > 0 && running) {
+            resumed.await();
+         }
+      } catch (InterruptedException ex) {
+         running = false;
+      } finally {
+         pauseLock.unlock();
+      }
+   }
+
+   public void close() {
+      running = false;
+      pauseLock.lock();
+      try {
+         resumed.signalAll();
+      } finally {
+         pauseLock.unlock();
+      }
+
+      output.flush();
+      transport.close(this);
+   }
+
    protected abstract void parse(String line);
 
+   /**
+    * Called with the lines of one read, in order. The list is only valid
+    * until the method returns.
+    */
+   protected void parse(List<String> lines) {
+      for (int i = 0; i < lines.size(); ++i) {
+         parse(lines.get(i));
+      }
+   }
+
+   /**
+    * Called for every line read, the line is a slice of the bytes read.
+    * Only a line a filter handles is decoded, for {@link #parse(List)},
+    * which is called when all lines of the read are decoded. The others are
+    * written to the peer as they are, after the lines decoded before.
+    */
+   protected void parse(byte[] bytes, int offset, int length) {
+      if (!undecoded || isFiltered(bytes, offset, length)) {
+         batch.add(decode(bytes, offset, length));
+      } else {
+         parseBatch();
+         getPeer().println(bytes, offset, length);
+      }
+   }
+
+   /**
+    * @param bytes a line in an ASCII compatible charset.
+    * @return FALSE when the filters hand the line on unchanged, so it need
+    * not be decoded.
+    */
+   protected boolean isFiltered(byte[] bytes, int offset, int length) {
+      return true;
+   }
+
+   protected String decode(byte[] bytes, int offset, int length) {
+      return new String(bytes, offset, length, lineCharset);
+   }
+
+   /**
+    * Called when all lines read so far are parsed. The outputs written by
+    * {@link #parse(String)} should be flushed now.
+    */
+   protected abstract void drained();
+
+   /**
+    * @return the connection on the other side of the proxy.
+    */
+   protected abstract AbstractFilteredConnection getPeer();
+
+   /**
+    * @return TRUE when there is no filter, so the input need not be split
+    * into lines but can be copied to the peer.
+    */
+   protected abstract boolean isPassthrough();
+
    protected PrintWriter getOutput() {
       return output;
    }
 
+   /**
+    * @return a sink writing the lines to the output.
+    */
+   protected LineSink getOutputSink() {
+      return outputSink;
+   }
+
+   protected OutboundQueue getOutputStream() {
+      return outputStream;
+   }
+
    protected Socket getSocket() {
       return socket;
    }
 
+   protected String getCharset() {
+      return charset;
+   }
+
+   protected Transport getTransport() {
+      return transport;
+   }
+
+   /**
+    * @return the bytes written but not yet sent to the socket.
+    */
+   public OutboundQueue getOutboundQueue() {
+      return outputStream;
+   }
+
+   /**
+    * @return the statistics of the output.
+    */
+   public CoalescingWriter getWriter() {
+      return writer;
+   }
+
    @Override
    public String toString() {
       return socket.toString();
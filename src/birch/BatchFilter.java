@@ -0,0 +1,47 @@
+/*
+ * BatchFilter.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.util.List;
+
+/**
+ * A {@link LineFilter} which takes all lines read at once from a socket in
+ * one call, so that its fixed costs are paid once for a paste instead of for
+ * every line.
+ *
+ * Filters which are no batch filters get the lines one by one, see
+ * {@link FilterAdapter#sendBatch(LineFilter, List, LineSink)}.
+ *
+ * @author Beselius
+ */
+public interface BatchFilter extends LineFilter {
+
+   /**
+    * Messages from client to server, in the order they were read. The list
+    * must not be changed or kept.
+    */
+   void send(List<String> messages, LineSink sink);
+
+   /**
+    * Messages from server to client, in the order they were read.
+    */
+   void receive(List<String> messages, LineSink sink);
+}
@@ -0,0 +1,40 @@
+/*
+ * CharsetFilterFactory.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.nio.charset.Charset;
+
+import java.util.ServiceConfigurationError;
+
+/**
+ * A {@link FilterFactory} whose filters need to know the charset the lines
+ * of their connection are written in, like a filter which measures lines in
+ * bytes.
+ *
+ * The {@link FilterChain} calls this method instead of
+ * {@link FilterFactory#getFilterInstance(Filter)}.
+ *
+ * @author Beselius
+ */
+public interface CharsetFilterFactory extends FilterFactory {
+
+   Filter getFilterInstance(Filter next, Charset charset) throws ServiceConfigurationError;
+}
@@ -25,11 +25,13 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.List;
-import java.util.ArrayList;
 
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -39,27 +41,62 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class ClientConnection extends AbstractFilteredConnection implements Filter {
 
    private Proxy proxy;
-   private Filter filter;
-   private AbstractFilteredConnection serverConnection = null;
-   private volatile List<String> buffer = new ArrayList<String>();
+   private volatile Filter filter;
+   private volatile LineFilter lineFilter;
+   private volatile AbstractFilteredConnection serverConnection = null;
+   /**
+    * The lines filtered of a batch, kept until the whole batch is filtered,
+    * so that the messages can be handed on unchanged when the chain fails.
+    * Used by the reading threads of the client and of the server.
+    */
+   private final Lines sent = new Lines();
+   private final Lines received = new Lines();
+   /** Lines read before the server is connected. */
+   private final PendingBuffer pending;
+   private volatile boolean pendingPaused;
    private AtomicBoolean stopping;
    private String charset;
+   private String serverHost;
+   private int serverPort;
+
+   /**
+    * Collects lines for another sink.
+    */
+   private static class Lines implements LineSink {
+
+      private final List<String> lines = new ArrayList<String>();
+
+      public void line(String line) {
+         lines.add(line);
+      }
+
+      public void handTo(LineSink sink) {
+         try {
+            for (int i = 0; i < lines.size(); ++i) {
+               sink.line(lines.get(i));
+            }
+         } finally {
+            lines.clear();
+         }
+      }
+   }
 
    public ClientConnection(Filter filter, Proxy proxy, Socket socket, String serverHost, int serverPort, String charset)
            throws UnknownHostException, IOException {
-      super(socket, charset);
+      super(socket, charset, proxy.getTransport(), proxy.getConfig());
 
       this.filter = filter;
+      this.lineFilter = FilterAdapter.adapt(filter);
       this.proxy = proxy;
       this.charset = charset;
+      this.serverHost = serverHost;
+      this.serverPort = serverPort;
       stopping = new AtomicBoolean(false);
-
-      try {
-         connect(serverHost, serverPort);
-      } catch (IOException ex) {
-         close();
-         throw ex;
-      }
+      pending = new PendingBuffer(
+                 proxy.getConfig().getPendingLimit(),
+                 proxy.getConfig().getPendingOverflow(),
+                 proxy.getPendingBudget()
+              );
 
       Logger.getLogger(ClientConnection.class.getName()).log(Level.INFO, "ClientConnection created");
    }
@@ -68,37 +105,161 @@ public class ClientConnection extends AbstractFilteredConnection implements Filt
    public void close() {
       super.close();
       if (stopping.getAndSet(true) == false) {
-         if (serverConnection != null) {
-            serverConnection.close();
+         AbstractFilteredConnection server;
+
+         server = serverConnection;
+         if (server != null) {
+            server.close();
          }
+         pending.clear();
+         FilterAdapter.close(filter);
          proxy.removeClientConnection(this);
       }
    }
 
+   /**
+    * Buffer the line while the server is not connected, else parse it.
+    */
+   @Override
+   protected void parse(byte[] bytes, int offset, int length) {
+      if (serverConnection == null) {
+         synchronized (pending) {
+            if (serverConnection == null) {
+               if (!stopping.get()) {
+                  buffer(bytes, offset, length);
+               }
+               return;
+            }
+         }
+      }
+
+      super.parse(bytes, offset, length);
+   }
+
+   @Override
+   protected boolean isFiltered(byte[] bytes, int offset, int length) {
+      LineFilter current;
+
+      current = lineFilter;
+      return !(current instanceof DispatchFilter) || ((DispatchFilter) current).handlesSend(bytes, offset, length);
+   }
+
+   /**
+    * @return FALSE when the filters hand a line from the server on
+    * unchanged.
+    */
+   protected boolean isReceiveFiltered(byte[] bytes, int offset, int length) {
+      LineFilter current;
+
+      current = lineFilter;
+      return !(current instanceof DispatchFilter) || ((DispatchFilter) current).handlesReceive(bytes, offset, length);
+   }
+
    protected void parse(String line) {
       Logger.getLogger(ClientConnection.class.getName()).log(Level.FINEST, "parse line: " + line);
 
-      if (serverConnection != null && serverConnection.getSocket().isConnected()) {
-         String lineToSend;
+      send(line, serverConnection.getOutputSink());
+   }
+
+   @Override
+   protected void parse(List<String> lines) {
+      Logger logger;
+
+      logger = Logger.getLogger(ClientConnection.class.getName());
+      if (logger.isLoggable(Level.FINEST)) {
+         for (String line : lines) {
+            logger.log(Level.FINEST, "parse line: " + line);
+         }
+      }
 
-         lineToSend = send(line);
+      send(lines, serverConnection.getOutputSink());
+   }
 
-         Logger.getLogger(ClientConnection.class.getName()).log(Level.FINEST, "filtered line: " + line);
-         serverConnection.getOutput().println(lineToSend);
-      } else {
-         buffer.add(line);
+   private void buffer(byte[] bytes, int offset, int length) {
+      if (!pending.add(bytes, offset, length)) {
+         if (PendingBuffer.OVERFLOW_PAUSE.equals(pending.getOverflow())) {
+            if (!pendingPaused) {
+               Logger.getLogger(ClientConnection.class.getName()).log(Level.INFO,
+                       "too many lines before the server is connected, reading paused");
+               pendingPaused = true;
+               pauseReading();
+            }
+         } else {
+            Logger.getLogger(ClientConnection.class.getName()).log(Level.WARNING,
+                    "too many lines before the server is connected, connection closed");
+            close();
+         }
       }
    }
 
-   private void connect(String host, int port) throws UnknownHostException, IOException {
-      Logger.getLogger(ClientConnection.class.getName()).log(Level.INFO, "connect to server: " + host + ":" + port);
+   /**
+    * Open the connection to the server and send the lines read so far.
+    * Blocks up to the connect timeout, the connection is closed when the
+    * server cannot be reached.
+    */
+   public void connect() {
+      AbstractFilteredConnection server;
+
+      Logger.getLogger(ClientConnection.class.getName()).log(Level.INFO,
+              "connect to server: " + serverHost + ":" + serverPort);
 
-      serverConnection = new ServerConnection(this, host, port, charset);
-      proxy.execute(serverConnection);
-      for (String line : buffer) {
-         serverConnection.getOutput().println(line);
+      try {
+         server = new ServerConnection(this, proxy, serverHost, serverPort, charset);
+      } catch (IOException ex) {
+         Logger.getLogger(ClientConnection.class.getName()).log(Level.WARNING,
+                 "connect to server " + serverHost + ":" + serverPort + " failed: " + ex.getLocalizedMessage());
+         close();
+         return;
       }
-      buffer.clear();
+
+      synchronized (pending) {
+         List<String> lines;
+
+         lines = new ArrayList<String>();
+         for (byte[] line : pending.clear()) {
+            lines.add(decode(line, 0, line.length));
+         }
+         if (!lines.isEmpty()) {
+            send(lines, server.getOutputSink());
+         }
+         serverConnection = server;
+      }
+      server.getOutput().flush();
+      if (pendingPaused) {
+         pendingPaused = false;
+         resumeReading();
+      }
+
+      try {
+         proxy.execute(server);
+      } catch (RejectedExecutionException ex) {
+         Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, null, ex);
+         close();
+      }
+      if (stopping.get()) {
+         // closed while connecting
+         server.close();
+      }
+   }
+
+   @Override
+   protected void drained() {
+      AbstractFilteredConnection server;
+
+      server = serverConnection;
+      if (server != null) {
+         server.getOutput().flush();
+      }
+   }
+
+   @Override
+   protected AbstractFilteredConnection getPeer() {
+      return serverConnection;
+   }
+
+   @Override
+   protected boolean isPassthrough() {
+      return filter == Filter.nullObject;
    }
 
    public String send(String message) {
@@ -111,9 +272,55 @@ public class ClientConnection extends AbstractFilteredConnection implements Filt
       }
    }
 
+   /**
+    * Filter a message from the client and hand the lines to the sink.
+    */
+   private void send(String message, LineSink sink) {
+      try {
+         lineFilter.send(message, sink);
+      } catch (RuntimeException ex) {
+         Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, "Error while processing the filter chain.", ex);
+
+         sink.line(message);
+      }
+   }
+
+   /**
+    * Filter the messages read at once from the client and hand the lines to
+    * the sink. When the chain fails, the messages are handed on unchanged,
+    * like a single message.
+    */
+   private void send(List<String> messages, LineSink sink) {
+      try {
+         FilterAdapter.sendBatch(lineFilter, messages, sent);
+      } catch (RuntimeException ex) {
+         Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, "Error while processing the filter chain.", ex);
+
+         sent.lines.clear();
+         sent.lines.addAll(messages);
+      }
+      sent.handTo(sink);
+   }
+
+   /**
+    * Filter the messages read at once from the server and write them to the
+    * client.
+    */
+   public void receive(List<String> messages) {
+      try {
+         FilterAdapter.receiveBatch(lineFilter, messages, received);
+      } catch (RuntimeException ex) {
+         Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, "Error while processing the filter chain.", ex);
+
+         received.lines.clear();
+         received.lines.addAll(messages);
+      }
+      received.handTo(getOutputSink());
+   }
+
    public String receive(String message) {
       try {
-         getOutput().println(filter.receive(message));
+         lineFilter.receive(message, getOutputSink());
       } catch (RuntimeException ex) {
          Logger.getLogger(ClientConnection.class.getName()).log(Level.SEVERE, "Error while processing the filter chain.", ex);
 
@@ -127,6 +334,7 @@ public class ClientConnection extends AbstractFilteredConnection implements Filt
    }
 
    public void setNext(Filter filter) {
+      this.lineFilter = FilterAdapter.adapt(filter);
       this.filter = filter;
    }
 }
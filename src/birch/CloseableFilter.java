@@ -0,0 +1,39 @@
+/*
+ * CloseableFilter.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+/**
+ * A {@link Filter} which holds resources of its own, released when the
+ * connection of the filter is closed.
+ *
+ * Filters are closed through {@link FilterAdapter#close(Filter)}, other
+ * filters are left alone.
+ *
+ * @author Beselius
+ */
+public interface CloseableFilter extends Filter {
+
+   /**
+    * Called once when the connection is closed. Lines read before may still
+    * be handed to the filter while and after it is closed.
+    */
+   void close();
+}
@@ -0,0 +1,304 @@
+/*
+ * CoalescingWriter.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.nio.charset.Charset;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the lines written to a connection and writes them with one flush.
+ *
+ * The owner of the writer flushes it when there is no more input to process.
+ * Besides that the writer flushes itself when more than the flush threshold
+ * is buffered or when the oldest buffered character waited longer than the
+ * flush delay.
+ *
+ * A writer encoding into a stream also takes lines which are encoded
+ * already, they are written in order with the characters.
+ *
+ * @author Beselius
+ */
+public class CoalescingWriter extends Writer {
+
+   /** Milliseconds, a delay of 0 flushes every line. */
+   public static final int DEFAULT_FLUSH_DELAY = 10;
+   /** Characters. */
+   public static final int DEFAULT_FLUSH_THRESHOLD = 4096;
+
+   private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+           new ThreadFactory() {
+
+              public Thread newThread(Runnable runnable) {
+                 Thread thread;
+
+                 thread = new Thread(runnable, "birch-flush");
+                 thread.setDaemon(true);
+
+                 return thread;
+              }
+           });
+
+   private final Runnable flushTask = new Runnable() {
+
+      public void run() {
+         synchronized (lock) {
+            flushScheduled = false;
+         }
+         try {
+            flush();
+         } catch (IOException ex) {
+            Logger.getLogger(CoalescingWriter.class.getName()).log(Level.FINE, ex.getLocalizedMessage(), ex);
+         }
+      }
+   };
+
+   private final Writer out;
+   /** The stream the writer encodes into or null. */
+   private final OutputStream stream;
+   private final int flushDelay;
+   private final char[] buffer;
+   private int count;
+   /** Encoded bytes written after the characters given to out. */
+   private final byte[] bytes;
+   private int byteCount;
+   private boolean flushScheduled;
+   private boolean closed;
+
+   private int pendingLines;
+   private long lines;
+   private long flushes;
+
+   public CoalescingWriter(Writer out) {
+      this(out, DEFAULT_FLUSH_DELAY, DEFAULT_FLUSH_THRESHOLD);
+   }
+
+   public CoalescingWriter(Writer out, int flushDelay, int flushThreshold) {
+      this(out, null, flushDelay, flushThreshold);
+   }
+
+   /**
+    * A writer encoding into the stream, which takes encoded bytes as well.
+    */
+   public CoalescingWriter(OutputStream out, Charset charset, int flushDelay, int flushThreshold) {
+      this(new OutputStreamWriter(unflushed(out), charset), out, flushDelay, flushThreshold);
+   }
+
+   private CoalescingWriter(Writer out, OutputStream stream, int flushDelay, int flushThreshold) {
+      this.out = out;
+      this.stream = stream;
+      this.flushDelay = flushDelay;
+      this.buffer = new char[Math.max(1, flushThreshold)];
+      this.bytes = stream == null ? null : new byte[buffer.length];
+   }
+
+   /**
+    * The encoder is flushed to keep its bytes in order with the encoded
+    * bytes written, that must not flush the stream too.
+    */
+   private static OutputStream unflushed(OutputStream out) {
+      return new FilterOutputStream(out) {
+
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+         }
+
+         @Override
+         public void flush() {
+         }
+      };
+   }
+
+   @Override
+   public void write(char[] cbuf, int off, int len) throws IOException {
+      synchronized (lock) {
+         int newLines;
+
+         if (closed) {
+            throw new IOException("Writer closed.");
+         }
+
+         newLines = 0;
+         for (int i = off; i < off + len; ++i) {
+            if (cbuf[i] == '\n') {
+               ++newLines;
+            }
+         }
+         pendingLines += newLines;
+
+         if (len > buffer.length - count) {
+            writeBuffer();
+         }
+         if (len >= buffer.length) {
+            out.write(cbuf, off, len);
+            flush();
+            return;
+         }
+         System.arraycopy(cbuf, off, buffer, count, len);
+         count += len;
+
+         if (count == buffer.length || (flushDelay <= 0 && newLines > 0)) {
+            flush();
+         } else if (!flushScheduled && count > 0) {
+            flushScheduled = true;
+            timer.schedule(flushTask, flushDelay, TimeUnit.MILLISECONDS);
+         }
+      }
+   }
+
+   /**
+    * Write bytes encoded in the charset of the writer after the characters
+    * written before.
+    * @throws IOException when the writer does not encode into a stream.
+    */
+   public void writeEncoded(byte[] b, int off, int len) throws IOException {
+      synchronized (lock) {
+         int newLines;
+
+         if (closed) {
+            throw new IOException("Writer closed.");
+         }
+         if (stream == null) {
+            throw new IOException("Writer without stream.");
+         }
+
+         newLines = 0;
+         for (int i = off; i < off + len; ++i) {
+            if (b[i] == '\n') {
+               ++newLines;
+            }
+         }
+         pendingLines += newLines;
+
+         if (count > 0) {
+            // the characters before go first
+            writeBuffer();
+            out.flush();
+         }
+         if (len > bytes.length - byteCount) {
+            writeBuffer();
+         }
+         if (len >= bytes.length) {
+            stream.write(b, off, len);
+            flush();
+            return;
+         }
+         System.arraycopy(b, off, bytes, byteCount, len);
+         byteCount += len;
+
+         if (byteCount == bytes.length || (flushDelay <= 0 && newLines > 0)) {
+            flush();
+         } else if (!flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(flushTask, flushDelay, TimeUnit.MILLISECONDS);
+         }
+      }
+   }
+
+   @Override
+   public void flush() throws IOException {
+      synchronized (lock) {
+         if (closed) {
+            return;
+         }
+         writeBuffer();
+         out.flush();
+         if (stream != null) {
+            stream.flush();
+         }
+         if (pendingLines > 0) {
+            lines += pendingLines;
+            ++flushes;
+            pendingLines = 0;
+         }
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      synchronized (lock) {
+         if (!closed) {
+            flush();
+            closed = true;
+            out.close();
+         }
+      }
+   }
+
+   /**
+    * @return the number of lines written.
+    */
+   public long getLineCount() {
+      synchronized (lock) {
+         return lines + pendingLines;
+      }
+   }
+
+   /**
+    * @return the number of flushes which wrote at least one line.
+    */
+   public long getFlushCount() {
+      synchronized (lock) {
+         return flushes;
+      }
+   }
+
+   /**
+    * @return the average number of lines written by a flush.
+    */
+   public double getLinesPerFlush() {
+      synchronized (lock) {
+         return flushes == 0 ? 0 : (double) lines / flushes;
+      }
+   }
+
+   /**
+    * The encoded bytes are older than the characters buffered.
+    */
+   private void writeBuffer() throws IOException {
+      if (byteCount > 0) {
+         stream.write(bytes, 0, byteCount);
+         byteCount = 0;
+      }
+      if (count > 0) {
+         out.write(buffer, 0, count);
+         count = 0;
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "lines: " + getLineCount() + ", flushes: " + getFlushCount() + ", lines per flush: " + getLinesPerFlush();
+   }
+}
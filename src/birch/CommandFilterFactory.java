@@ -0,0 +1,44 @@
+/*
+ * CommandFilterFactory.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+/**
+ * A {@link FilterFactory} whose filters only handle some IRC commands.
+ *
+ * The {@link FilterChain} hands a filter only the lines with the commands it
+ * declared for the direction, all other lines pass it without a call.
+ *
+ * @author Beselius
+ */
+public interface CommandFilterFactory extends FilterFactory {
+
+   /**
+    * @return the commands of the messages from client to server the filter
+    * handles, null for all.
+    */
+   String[] getSendCommands();
+
+   /**
+    * @return the commands of the messages from server to client the filter
+    * handles, null for all.
+    */
+   String[] getReceiveCommands();
+}
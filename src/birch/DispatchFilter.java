@@ -0,0 +1,43 @@
+/*
+ * DispatchFilter.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+/**
+ * A {@link BatchFilter} which tells by the command of a line whether it
+ * handles the line at all. The lines it does not handle are not decoded but
+ * written to the other side of the proxy as they were read.
+ *
+ * @author Beselius
+ */
+public interface DispatchFilter extends BatchFilter {
+
+   /**
+    * @param line the bytes of a line from the client without the line end,
+    * in an ASCII compatible charset.
+    * @return FALSE when the line would be handed on unchanged.
+    */
+   boolean handlesSend(byte[] line, int offset, int length);
+
+   /**
+    * @param line the bytes of a line from the server.
+    */
+   boolean handlesReceive(byte[] line, int offset, int length);
+}
@@ -0,0 +1,133 @@
+/*
+ * FilterAdapter.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.util.List;
+
+/**
+ * Makes a {@link LineFilter} of a {@link Filter} which returns the lines of a
+ * message separated by "\n". Empty lines are not handed on, so a filter
+ * returns "" to drop a message.
+ *
+ * @author Beselius
+ */
+public class FilterAdapter implements LineFilter, CloseableFilter {
+
+   private final Filter filter;
+
+   private FilterAdapter(Filter filter) {
+      this.filter = filter;
+   }
+
+   /**
+    * @return the filter itself if it is a {@link LineFilter}.
+    */
+   public static LineFilter adapt(Filter filter) {
+      if (filter instanceof LineFilter) {
+         return (LineFilter) filter;
+      }
+      return new FilterAdapter(filter);
+   }
+
+   /**
+    * Hand the lines separated by "\n" to the sink.
+    */
+   public static void split(String lines, LineSink sink) {
+      int start;
+      int end;
+
+      if (lines == null) {
+         return;
+      }
+      start = 0;
+      while (start < lines.length()) {
+         end = lines.indexOf('\n', start);
+         if (end < 0) {
+            end = lines.length();
+         }
+         if (end > start) {
+            sink.line(start == 0 && end == lines.length() ? lines : lines.substring(start, end));
+         }
+         start = end + 1;
+      }
+   }
+
+   /**
+    * Hand the messages to a {@link BatchFilter} at once, to other filters one
+    * by one.
+    */
+   public static void sendBatch(LineFilter filter, List<String> messages, LineSink sink) {
+      if (filter instanceof BatchFilter) {
+         ((BatchFilter) filter).send(messages, sink);
+      } else {
+         for (int i = 0; i < messages.size(); ++i) {
+            filter.send(messages.get(i), sink);
+         }
+      }
+   }
+
+   public static void receiveBatch(LineFilter filter, List<String> messages, LineSink sink) {
+      if (filter instanceof BatchFilter) {
+         ((BatchFilter) filter).receive(messages, sink);
+      } else {
+         for (int i = 0; i < messages.size(); ++i) {
+            filter.receive(messages.get(i), sink);
+         }
+      }
+   }
+
+   /**
+    * Close a {@link CloseableFilter}, other filters need not be closed.
+    */
+   public static void close(Filter filter) {
+      if (filter instanceof CloseableFilter) {
+         ((CloseableFilter) filter).close();
+      }
+   }
+
+   public void send(String message, LineSink sink) {
+      split(filter.send(message), sink);
+   }
+
+   public void receive(String message, LineSink sink) {
+      split(filter.receive(message), sink);
+   }
+
+   public String send(String message) {
+      return filter.send(message);
+   }
+
+   public String receive(String message) {
+      return filter.receive(message);
+   }
+
+   public Filter getNext() {
+      return filter.getNext();
+   }
+
+   public void setNext(Filter filter) {
+      this.filter.setNext(filter);
+   }
+
+   public void close() {
+      close(filter);
+   }
+}
@@ -20,6 +20,8 @@
  */
 package birch;
 
+import java.nio.charset.Charset;
+
 import java.util.*;
 import java.util.logging.*;
 
@@ -32,6 +34,8 @@ public class FilterChain {
    private ServiceLoader<FilterFactory>[] filterFactoryLoaders;
    private String[] filterNames;
    private Map<String, FilterFactory> factoryMap;
+   private DispatchTable sendTable;
+   private DispatchTable receiveTable;
 
    public FilterChain(ServiceLoader<FilterFactory>[] filterFactoryLoaders, String[] filterNames)
            throws ClassNotFoundException {
@@ -40,29 +44,37 @@ public class FilterChain {
 
       factoryMap = new HashMap<String, FilterFactory>();
       fillFactoryMap();
+      fillDispatchTables();
    }
 
    public Filter getNewList() {
-      List<Filter> filters;
-      Filter lastFilter;
+      return getNewList(Charset.defaultCharset());
+   }
 
-      filters = new ArrayList<Filter>(filterNames.length);
+   /**
+    * @param charset of the lines of the connection, given to the
+    * {@link CharsetFilterFactory}s.
+    */
+   public Filter getNewList(Charset charset) {
+      LineFilter[] filters;
+      FilterFactory factory;
 
-      for (String filterName : filterNames) {
-         filters.add( factoryMap.get(filterName).getFilterInstance(Filter.nullObject) );
+      if (filterNames.length == 0) {
+         return Filter.nullObject;
       }
 
-      lastFilter = Filter.nullObject;
-      for (Filter filter : filters) {
-         lastFilter.setNext(filter);
-         lastFilter = filter;
+      filters = new LineFilter[filterNames.length];
+      for (int i = 0; i < filterNames.length; ++i) {
+         factory = factoryMap.get(filterNames[i]);
+         if (factory instanceof CharsetFilterFactory) {
+            filters[i] = FilterAdapter.adapt(
+                    ((CharsetFilterFactory) factory).getFilterInstance(Filter.nullObject, charset));
+         } else {
+            filters[i] = FilterAdapter.adapt(factory.getFilterInstance(Filter.nullObject));
+         }
       }
 
-      if (filters.isEmpty()) {
-         return Filter.nullObject;
-      } else {
-         return filters.get(0);
-      }
+      return new Dispatcher(filters, sendTable, receiveTable);
    }
 
    private void fillFactoryMap() throws ClassNotFoundException {
@@ -77,6 +89,36 @@ public class FilterChain {
       }
    }
 
+   /**
+    * Without a factory declaring the commands of its filters every filter
+    * handles every command.
+    */
+   private void fillDispatchTables() {
+      String[][] sendCommands;
+      String[][] receiveCommands;
+      boolean declared;
+      FilterFactory factory;
+
+      sendCommands = new String[filterNames.length][];
+      receiveCommands = new String[filterNames.length][];
+      declared = false;
+      for (int i = 0; i < filterNames.length; ++i) {
+         factory = factoryMap.get(filterNames[i]);
+         if (factory instanceof CommandFilterFactory) {
+            sendCommands[i] = ((CommandFilterFactory) factory).getSendCommands();
+            receiveCommands[i] = ((CommandFilterFactory) factory).getReceiveCommands();
+            declared = true;
+         }
+      }
+
+      sendTable = new DispatchTable(sendCommands);
+      receiveTable = new DispatchTable(receiveCommands);
+      if (declared) {
+         Logger.getLogger(FilterChain.class.getName()).log(Level.FINE,
+                 "send dispatch: " + sendTable + ", receive dispatch: " + receiveTable);
+      }
+   }
+
    private FilterFactory getFilterFactory(String filterName) {
       for (ServiceLoader<FilterFactory> loader : filterFactoryLoaders) {
          Logger.getLogger(FilterChain.class.getName())
@@ -93,4 +135,459 @@ public class FilterChain {
       }
       return null;
    }
+
+   /**
+    * Which filters of the chain handle a command.
+    *
+    * The commands are few, they are compared one after the other with the
+    * command of the parsed line, ignoring case and without creating a string.
+    */
+   private static class DispatchTable {
+
+      private final String[] commands;
+      /** The filters handling each of the commands. */
+      private final boolean[][] handled;
+      /** The filters handling every command. */
+      private final boolean[] other;
+      /** Whether any filter handles each command or the others. */
+      private final boolean[] any;
+      private final boolean anyOther;
+
+      public DispatchTable(String[][] filterCommands) {
+         List<String> names;
+         List<boolean[]> filters;
+         int index;
+
+         other = new boolean[filterCommands.length];
+         for (int i = 0; i < filterCommands.length; ++i) {
+            other[i] = filterCommands[i] == null;
+         }
+
+         names = new ArrayList<String>();
+         filters = new ArrayList<boolean[]>();
+         for (int i = 0; i < filterCommands.length; ++i) {
+            if (filterCommands[i] != null) {
+               for (String command : filterCommands[i]) {
+                  index = names.indexOf(command.toUpperCase(Locale.ENGLISH));
+                  if (index < 0) {
+                     index = names.size();
+                     names.add(command.toUpperCase(Locale.ENGLISH));
+                     filters.add(other.clone());
+                  }
+                  filters.get(index)[i] = true;
+               }
+            }
+         }
+         commands = names.toArray(new String[names.size()]);
+         handled = filters.toArray(new boolean[filters.size()][]);
+         any = new boolean[commands.length];
+         for (int i = 0; i < commands.length; ++i) {
+            any[i] = contains(handled[i]);
+         }
+         anyOther = contains(other);
+      }
+
+      private static boolean contains(boolean[] handled) {
+         for (boolean filter : handled) {
+            if (filter) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      /**
+       * @return TRUE when any filter handles the command of the line, given
+       * as bytes in an ASCII compatible charset.
+       */
+      public boolean handles(byte[] line, int offset, int length) {
+         int start;
+         int end;
+
+         if (commands.length == 0) {
+            return anyOther;
+         }
+         start = IrcMessage.commandStart(line, offset, offset + length);
+         end = IrcMessage.wordEnd(line, start, offset + length);
+         for (int i = 0; i < commands.length; ++i) {
+            if (IrcMessage.regionMatches(line, start, end, commands[i])) {
+               return any[i];
+            }
+         }
+
+         return anyOther;
+      }
+
+      public boolean[] get(String message) {
+         IrcMessage parsed;
+
+         if (commands.length == 0) {
+            return other;
+         }
+         parsed = IrcMessage.parse(message);
+         for (int i = 0; i < commands.length; ++i) {
+            if (parsed.isCommand(commands[i])) {
+               return handled[i];
+            }
+         }
+
+         return other;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder result;
+
+         result = new StringBuilder();
+         for (int i = 0; i < commands.length; ++i) {
+            result.append(commands[i]).append(Arrays.toString(handled[i])).append(' ');
+         }
+         result.append("*").append(Arrays.toString(other));
+
+         return result.toString();
+      }
+   }
+
+   /**
+    * Calls the filters of the chain one after the other, but only those which
+    * handle the command of the message. Every line a filter hands on goes to
+    * the next filter on its own.
+    *
+    * A batch of messages passes the filters one filter after the other, each
+    * filter gets the lines it handles which are not separated by others at
+    * once. A filter failing does not fail the batch, only the lines it was
+    * given pass it unchanged.
+    */
+   private static class Dispatcher implements DispatchFilter, CloseableFilter {
+
+      private final LineFilter[] filters;
+      private final DispatchTable sendTable;
+      private final DispatchTable receiveTable;
+      private final Stage[] sendStages;
+      private final Stage[] receiveStages;
+      /** The lines of a batch, those handed on by every filter and the run. */
+      private final Lines sendInput;
+      private final Lines receiveInput;
+      private final Lines[] sendLines;
+      private final Lines[] receiveLines;
+      private final Lines sendRun;
+      private final Lines receiveRun;
+
+      public Dispatcher(LineFilter[] filters, DispatchTable sendTable, DispatchTable receiveTable) {
+         this.filters = filters;
+         this.sendTable = sendTable;
+         this.receiveTable = receiveTable;
+
+         sendStages = new Stage[filters.length];
+         receiveStages = new Stage[filters.length];
+         sendLines = new Lines[filters.length];
+         receiveLines = new Lines[filters.length];
+         for (int i = 0; i < filters.length; ++i) {
+            sendStages[i] = new Stage(i, true);
+            receiveStages[i] = new Stage(i, false);
+            sendLines[i] = new Lines();
+            receiveLines[i] = new Lines();
+         }
+         sendInput = new Lines();
+         receiveInput = new Lines();
+         sendRun = new Lines();
+         receiveRun = new Lines();
+      }
+
+      /**
+       * Collects the lines a filter hands on, with the filters handling each
+       * line. Like for a {@link Stage}, the filters are known for a line
+       * handed on unchanged, else they are looked up when needed.
+       */
+      private static class Lines implements LineSink {
+
+         private final List<String> lines = new ArrayList<String>();
+         /** The filters handling each line or null. */
+         private final List<boolean[]> handled = new ArrayList<boolean[]>();
+         /** The lines given to the filter and the next one expected back. */
+         private Lines given;
+         private int next;
+
+         public void line(String line) {
+            if (given != null && next < given.lines.size() && given.lines.get(next) == line) {
+               add(line, given.handled.get(next++));
+            } else {
+               add(line, null);
+            }
+         }
+
+         public void add(String line, boolean[] filters) {
+            lines.add(line);
+            handled.add(filters);
+         }
+
+         /**
+          * Expect the lines of given from index on back from the filter.
+          */
+         public void expect(Lines given, int index) {
+            this.given = given;
+            this.next = index;
+         }
+
+         /** Drop the lines from index on. */
+         public void truncate(int index) {
+            lines.subList(index, lines.size()).clear();
+            handled.subList(index, handled.size()).clear();
+         }
+
+         public void clear() {
+            lines.clear();
+            handled.clear();
+            given = null;
+         }
+
+         /**
+          * @return these lines holding the messages, whose filters are not
+          * known yet.
+          */
+         public Lines of(List<String> messages) {
+            for (int i = 0; i < messages.size(); ++i) {
+               add(messages.get(i), null);
+            }
+            return this;
+         }
+      }
+
+      /**
+       * Takes the lines of a filter to the next one handling them.
+       */
+      private class Stage implements LineSink {
+
+         private final int index;
+         private final boolean send;
+         /** The message given to the filter and the filters handling it. */
+         private String message;
+         private boolean[] handled;
+         private LineSink sink;
+
+         public Stage(int index, boolean send) {
+            this.index = index;
+            this.send = send;
+         }
+
+         public void line(String line) {
+            // the filters handling a line passed on unchanged are known
+            if (send) {
+               send(index + 1, line, line == message ? handled : null, sink);
+            } else {
+               receive(index - 1, line, line == message ? handled : null, sink);
+            }
+         }
+      }
+
+      public boolean handlesSend(byte[] line, int offset, int length) {
+         return sendTable.handles(line, offset, length);
+      }
+
+      public boolean handlesReceive(byte[] line, int offset, int length) {
+         return receiveTable.handles(line, offset, length);
+      }
+
+      public void send(String message, LineSink sink) {
+         send(0, message, null, sink);
+      }
+
+      public void receive(String message, LineSink sink) {
+         // like the chain, the last filter sees the message first
+         receive(filters.length - 1, message, null, sink);
+      }
+
+      private void send(int from, String message, boolean[] handled, LineSink sink) {
+         Stage stage;
+
+         if (handled == null) {
+            handled = sendTable.get(message);
+         }
+         for (int i = from; i < filters.length; ++i) {
+            if (handled[i]) {
+               stage = sendStages[i];
+               stage.message = message;
+               stage.handled = handled;
+               stage.sink = sink;
+               filters[i].send(message, stage);
+               return;
+            }
+         }
+         sink.line(message);
+      }
+
+      private void receive(int from, String message, boolean[] handled, LineSink sink) {
+         Stage stage;
+
+         if (handled == null) {
+            handled = receiveTable.get(message);
+         }
+         for (int i = from; i >= 0; --i) {
+            if (handled[i]) {
+               stage = receiveStages[i];
+               stage.message = message;
+               stage.handled = handled;
+               stage.sink = sink;
+               filters[i].receive(message, stage);
+               return;
+            }
+         }
+         sink.line(message);
+      }
+
+      public void send(List<String> messages, LineSink sink) {
+         Lines lines;
+
+         try {
+            lines = sendInput.of(messages);
+            for (int i = 0; i < filters.length; ++i) {
+               lines = apply(i, true, lines, sendTable, sendLines[i], sendRun);
+            }
+            for (int i = 0; i < lines.lines.size(); ++i) {
+               sink.line(lines.lines.get(i));
+            }
+         } finally {
+            clear(sendInput, sendLines, sendRun);
+         }
+      }
+
+      public void receive(List<String> messages, LineSink sink) {
+         Lines lines;
+
+         try {
+            lines = receiveInput.of(messages);
+            for (int i = filters.length - 1; i >= 0; --i) {
+               lines = apply(i, false, lines, receiveTable, receiveLines[i], receiveRun);
+            }
+            for (int i = 0; i < lines.lines.size(); ++i) {
+               sink.line(lines.lines.get(i));
+            }
+         } finally {
+            clear(receiveInput, receiveLines, receiveRun);
+         }
+      }
+
+      /**
+       * Let the filter at index handle the lines of its commands. The filters
+       * handling a line are looked up once, and kept while it passes on
+       * unchanged.
+       * @return the lines after the filter.
+       */
+      private Lines apply(int index, boolean send, Lines lines, DispatchTable table, Lines result, Lines run) {
+         String line;
+         boolean[] handled;
+
+         for (int i = 0; i < lines.lines.size(); ++i) {
+            line = lines.lines.get(i);
+            handled = lines.handled.get(i);
+            if (handled == null) {
+               handled = table.get(line);
+            }
+            if (handled[index]) {
+               run.add(line, handled);
+            } else {
+               // the lines before pass the filter first
+               applyRun(index, send, run, result);
+               result.add(line, handled);
+            }
+         }
+         applyRun(index, send, run, result);
+
+         return result;
+      }
+
+      /**
+       * A filter failing on a run passes the lines of the run on unchanged,
+       * as a connection does with a line the chain fails on. The lines the
+       * filter handed on before are dropped, so no line passes twice and no
+       * line is given to a filter again.
+       */
+      private void applyRun(int index, boolean send, Lines run, Lines result) {
+         int mark;
+
+         if (run.lines.isEmpty()) {
+            return;
+         }
+         if (filters[index] instanceof BatchFilter) {
+            mark = result.lines.size();
+            result.expect(run, 0);
+            try {
+               if (send) {
+                  ((BatchFilter) filters[index]).send(run.lines, result);
+               } else {
+                  ((BatchFilter) filters[index]).receive(run.lines, result);
+               }
+            } catch (RuntimeException ex) {
+               failed(ex);
+               result.truncate(mark);
+               for (int i = 0; i < run.lines.size(); ++i) {
+                  result.add(run.lines.get(i), run.handled.get(i));
+               }
+            }
+         } else {
+            for (int i = 0; i < run.lines.size(); ++i) {
+               mark = result.lines.size();
+               result.expect(run, i);
+               try {
+                  if (send) {
+                     filters[index].send(run.lines.get(i), result);
+                  } else {
+                     filters[index].receive(run.lines.get(i), result);
+                  }
+               } catch (RuntimeException ex) {
+                  failed(ex);
+                  result.truncate(mark);
+                  result.add(run.lines.get(i), run.handled.get(i));
+               }
+            }
+         }
+         result.expect(null, 0);
+         run.clear();
+      }
+
+      private static void failed(RuntimeException ex) {
+         Logger.getLogger(FilterChain.class.getName()).log(Level.SEVERE, "Error while processing the filter chain.", ex);
+      }
+
+      /** Do not keep the lines of a batch. */
+      private static void clear(Lines input, Lines[] lines, Lines run) {
+         input.clear();
+         for (Lines stage : lines) {
+            stage.clear();
+         }
+         run.clear();
+      }
+
+      public String send(String message) {
+         LineSink.Joiner result;
+
+         result = new LineSink.Joiner();
+         send(message, result);
+
+         return result.toString();
+      }
+
+      public String receive(String message) {
+         LineSink.Joiner result;
+
+         result = new LineSink.Joiner();
+         receive(message, result);
+
+         return result.toString();
+      }
+
+      public Filter getNext() {
+         return Filter.nullObject;
+      }
+
+      public void setNext(Filter filter) {
+         // The filters are called by the dispatcher
+      }
+
+      public void close() {
+         for (LineFilter filter : filters) {
+            FilterAdapter.close(filter);
+         }
+      }
+   }
 }
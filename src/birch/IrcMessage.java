@@ -0,0 +1,320 @@
+/*
+ * IrcMessage.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+/**
+ * An IRC line split into prefix, command and parameters.
+ *
+ * The parts are kept as offsets into the line, strings are only created when
+ * asked for. {@link #parse(String)} remembers the last line parsed on the
+ * current thread, so the filters of a chain which pass a line on unchanged
+ * share one parse of it.
+ *
+ * @author Beselius
+ */
+public final class IrcMessage {
+
+   private static final ThreadLocal<IrcMessage> last = new ThreadLocal<IrcMessage>();
+
+   private final String line;
+   /** Index of the end of the prefix, -1 without prefix. */
+   private final int prefixEnd;
+   private final int commandStart;
+   private final int commandEnd;
+
+   /** Start and end of every parameter, filled on first use. */
+   private int[] params;
+   private int paramCount = -1;
+   private int trailingStart = -1;
+
+   private String prefix;
+   private String command;
+   private String trailing;
+
+   private IrcMessage(String line) {
+      int position;
+
+      this.line = line;
+
+      position = 0;
+      if (line.startsWith(":")) {
+         prefixEnd = end(1);
+         position = skipSpaces(prefixEnd);
+      } else {
+         prefixEnd = -1;
+      }
+      commandStart = position;
+      commandEnd = end(position);
+   }
+
+   /**
+    * @return the parsed line, the same object as for the previous call on
+    * this thread when it is the same line.
+    */
+   public static IrcMessage parse(String line) {
+      IrcMessage result;
+
+      result = last.get();
+      if (result == null || result.line != line) {
+         result = new IrcMessage(line);
+         last.set(result);
+      }
+
+      return result;
+   }
+
+   /**
+    * @return the index of the command of a line given as bytes. Up to the
+    * end of the command the line is ASCII in every charset used for IRC.
+    */
+   public static int commandStart(byte[] bytes, int offset, int end) {
+      int position;
+
+      position = offset;
+      if (position < end && bytes[position] == ':') {
+         position = wordEnd(bytes, position, end);
+         while (position < end && bytes[position] == ' ') {
+            ++position;
+         }
+      }
+
+      return position;
+   }
+
+   /**
+    * @return the index of the space after the word at start or the end.
+    */
+   public static int wordEnd(byte[] bytes, int start, int end) {
+      while (start < end && bytes[start] != ' ') {
+         ++start;
+      }
+      return start;
+   }
+
+   /**
+    * Compare the bytes between start and end with an ASCII name, ignoring
+    * case.
+    */
+   public static boolean regionMatches(byte[] bytes, int start, int end, String name) {
+      char c;
+
+      if (end - start != name.length()) {
+         return false;
+      }
+      for (int i = 0; i < name.length(); ++i) {
+         c = (char) (bytes[start + i] & 0xff);
+         if (c != name.charAt(i) && Character.toUpperCase(c) != Character.toUpperCase(name.charAt(i))) {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   public String getLine() {
+      return line;
+   }
+
+   public boolean hasPrefix() {
+      return prefixEnd >= 0;
+   }
+
+   /**
+    * @return the prefix without the leading ':' or null.
+    */
+   public String getPrefix() {
+      if (prefix == null && prefixEnd >= 0) {
+         prefix = line.substring(1, prefixEnd);
+      }
+      return prefix;
+   }
+
+   /**
+    * @return the nick of a "nick!user@host" prefix or the whole prefix.
+    */
+   public String getNick() {
+      int end;
+
+      if (prefixEnd < 0) {
+         return null;
+      }
+      for (end = 1; end < prefixEnd; ++end) {
+         if (line.charAt(end) == '!' || line.charAt(end) == '@') {
+            break;
+         }
+      }
+
+      return end == prefixEnd ? getPrefix() : line.substring(1, end);
+   }
+
+   public String getCommand() {
+      if (command == null) {
+         command = line.substring(commandStart, commandEnd);
+      }
+      return command;
+   }
+
+   /**
+    * Compare the command ignoring case without creating a string.
+    */
+   public boolean isCommand(String name) {
+      return commandEnd - commandStart == name.length()
+              && line.regionMatches(true, commandStart, name, 0, name.length());
+   }
+
+   /**
+    * @return the number of parameters including the trailing one.
+    */
+   public int getParamCount() {
+      scanParams();
+      return paramCount;
+   }
+
+   public String getParam(int index) {
+      scanParams();
+      if (index < 0 || index >= paramCount) {
+         throw new IndexOutOfBoundsException("parameter " + index + " of " + paramCount);
+      }
+      if (index == paramCount - 1 && trailingStart >= 0) {
+         return getTrailing();
+      }
+      return line.substring(params[2 * index], params[2 * index + 1]);
+   }
+
+   /**
+    * Compare a parameter without creating a string.
+    */
+   public boolean paramEquals(int index, String text) {
+      int start;
+      int end;
+
+      scanParams();
+      if (index < 0 || index >= paramCount) {
+         return false;
+      }
+      start = params[2 * index];
+      end = params[2 * index + 1];
+
+      return end - start == text.length() && line.startsWith(text, start);
+   }
+
+   /**
+    * @return TRUE when the last parameter starts with ':'.
+    */
+   public boolean hasTrailing() {
+      scanParams();
+      return trailingStart >= 0;
+   }
+
+   /**
+    * @return the parameter after " :" or null.
+    */
+   public String getTrailing() {
+      scanParams();
+      if (trailing == null && trailingStart >= 0) {
+         trailing = line.substring(trailingStart);
+      }
+      return trailing;
+   }
+
+   /**
+    * @return the index of the trailing parameter in the line or -1.
+    */
+   public int getTrailingStart() {
+      scanParams();
+      return trailingStart;
+   }
+
+   public boolean trailingStartsWith(String text) {
+      scanParams();
+      return trailingStart >= 0 && line.startsWith(text, trailingStart);
+   }
+
+   /**
+    * @return the line up to the trailing parameter, ending with ':'.
+    */
+   public String getHead() {
+      scanParams();
+      return trailingStart >= 0 ? line.substring(0, trailingStart) : line + " :";
+   }
+
+   /**
+    * @return the line with the trailing parameter replaced.
+    */
+   public String withTrailing(String text) {
+      return getHead() + text;
+   }
+
+   private void scanParams() {
+      int position;
+      int end;
+
+      if (paramCount >= 0) {
+         return;
+      }
+
+      params = new int[8];
+      paramCount = 0;
+      position = skipSpaces(commandEnd);
+      while (position < line.length()) {
+         if (line.charAt(position) == ':') {
+            trailingStart = position + 1;
+            addParam(trailingStart, line.length());
+            break;
+         }
+         end = end(position);
+         addParam(position, end);
+         position = skipSpaces(end);
+      }
+   }
+
+   private void addParam(int start, int end) {
+      if (2 * paramCount + 2 > params.length) {
+         int[] grown = new int[params.length * 2];
+
+         System.arraycopy(params, 0, grown, 0, params.length);
+         params = grown;
+      }
+      params[2 * paramCount] = start;
+      params[2 * paramCount + 1] = end;
+      ++paramCount;
+   }
+
+   /** @return the index of the space after the word at position. */
+   private int end(int position) {
+      int result;
+
+      result = line.indexOf(' ', position);
+      return result < 0 ? line.length() : result;
+   }
+
+   private int skipSpaces(int position) {
+      while (position < line.length() && line.charAt(position) == ' ') {
+         ++position;
+      }
+      return position;
+   }
+
+   @Override
+   public String toString() {
+      return line;
+   }
+}
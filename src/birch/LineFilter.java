@@ -0,0 +1,45 @@
+/*
+ * LineFilter.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+/**
+ * A {@link Filter} which hands any number of lines on for a message, one
+ * after the other, instead of returning them as one string.
+ *
+ * The methods only apply this filter, the {@link FilterChain} hands the lines
+ * to the next one. The sink may only be called until the method returns.
+ * {@link Filter#send(String)} and {@link Filter#receive(String)} return the
+ * lines separated by "\n", "" for none.
+ *
+ * @author Beselius
+ */
+public interface LineFilter extends Filter {
+
+   /**
+    * Messages from client to server.
+    */
+   void send(String message, LineSink sink);
+
+   /**
+    * Messages from server to client.
+    */
+   void receive(String message, LineSink sink);
+}
@@ -0,0 +1,163 @@
+/*
+ * LineFramer.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits bytes into lines like {@link java.io.BufferedReader#readLine()}
+ * does with characters: a line ends with '\n', '\r' or "\r\n".
+ *
+ * The lines are handed out as slices of the bytes read. Only a line which is
+ * split over two reads is copied into a buffer, which grows up to the maximum
+ * line length. Longer lines are dropped.
+ *
+ * @author Beselius
+ */
+public class LineFramer {
+
+   public static interface Handler {
+
+      /**
+       * @param bytes only valid until the method returns.
+       */
+      void line(byte[] bytes, int offset, int length);
+   }
+
+   /** Bytes without the line end. */
+   public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+
+   private final int maxLineLength;
+   private byte[] line;
+   private int length;
+   private boolean skipLF;
+   private boolean discarding;
+   private long dropped;
+
+   public LineFramer() {
+      this(DEFAULT_MAX_LINE_LENGTH);
+   }
+
+   public LineFramer(int maxLineLength) {
+      this.maxLineLength = maxLineLength;
+      this.line = new byte[Math.max(1, Math.min(256, maxLineLength))];
+   }
+
+   /**
+    * Hand every complete line in the bytes to the handler and keep the rest
+    * until the next call.
+    */
+   public void frame(byte[] bytes, int offset, int limit, Handler handler) {
+      int start;
+      byte b;
+
+      start = offset;
+      for (int i = offset; i < limit; ++i) {
+         b = bytes[i];
+         if (b == '\n' || b == '\r') {
+            if (b == '\n' && skipLF && i == start && length == 0 && !discarding) {
+               // second half of "\r\n"
+               skipLF = false;
+               start = i + 1;
+               continue;
+            }
+            end(bytes, start, i, handler);
+            skipLF = b == '\r';
+            start = i + 1;
+         }
+      }
+
+      if (start < limit) {
+         append(bytes, start, limit);
+      }
+   }
+
+   /**
+    * @return the number of lines dropped because they were too long.
+    */
+   public long getDroppedLines() {
+      return dropped;
+   }
+
+   /**
+    * @return TRUE when the start of a line is kept for the next call.
+    */
+   public boolean hasPartialLine() {
+      return length > 0 || discarding;
+   }
+
+   public int getMaxLineLength() {
+      return maxLineLength;
+   }
+
+   private void end(byte[] bytes, int start, int end, Handler handler) {
+      if (length == 0 && !discarding) {
+         if (end - start > maxLineLength) {
+            drop();
+         } else {
+            handler.line(bytes, start, end - start);
+         }
+      } else {
+         append(bytes, start, end);
+         if (discarding) {
+            discarding = false;
+         } else {
+            handler.line(line, 0, length);
+         }
+         length = 0;
+      }
+   }
+
+   private void append(byte[] bytes, int start, int end) {
+      int needed;
+
+      if (discarding) {
+         return;
+      }
+
+      needed = length + end - start;
+      if (needed > maxLineLength) {
+         drop();
+         discarding = true;
+         length = 0;
+         return;
+      }
+      if (needed > line.length) {
+         byte[] grown = new byte[Math.min(maxLineLength, Math.max(needed, line.length * 2))];
+
+         System.arraycopy(line, 0, grown, 0, length);
+         line = grown;
+      }
+      System.arraycopy(bytes, start, line, length, end - start);
+      length = needed;
+   }
+
+   /**
+    * Only the first line dropped is a warning, a peer sending nothing but
+    * long lines must not flood the log.
+    */
+   private void drop() {
+      ++dropped;
+      Logger.getLogger(LineFramer.class.getName()).log(dropped == 1 ? Level.WARNING : Level.FINE,
+              "Line longer than " + maxLineLength + " bytes dropped, " + dropped + " so far.");
+   }
+}
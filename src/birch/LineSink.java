@@ -0,0 +1,65 @@
+/*
+ * LineSink.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+/**
+ * Takes the lines a {@link LineFilter} hands on.
+ *
+ * @author Beselius
+ */
+public interface LineSink {
+
+   void line(String line);
+
+   /**
+    * Collects the lines separated by "\n", for the callers of
+    * {@link Filter#send(String)} and {@link Filter#receive(String)}.
+    */
+   public static class Joiner implements LineSink {
+
+      /** The only line so far, the same string as handed to the sink. */
+      private String first;
+      private StringBuilder lines;
+
+      public void line(String line) {
+         if (first == null && lines == null) {
+            first = line;
+         } else {
+            if (lines == null) {
+               lines = new StringBuilder(first);
+               first = null;
+            }
+            lines.append('\n').append(line);
+         }
+      }
+
+      /**
+       * @return the lines, "" for none.
+       */
+      @Override
+      public String toString() {
+         if (lines != null) {
+            return lines.toString();
+         }
+         return first == null ? "" : first;
+      }
+   }
+}
@@ -0,0 +1,582 @@
+/*
+ * NioTransport.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking sockets, a few event loop threads serve all connections.
+ *
+ * The bytes read are handed to {@link AbstractFilteredConnection#read(ByteBuffer)}
+ * like the thread transports do, but on the thread of the event loop the socket
+ * is registered with. The output of a connection is
+ * queued and written when the socket is writable.
+ *
+ * @author Beselius
+ */
+public class NioTransport implements Transport {
+
+   public static final int BUFFER_SIZE = 8192;
+
+   /**
+    * Read and write state of one socket. It is also the output stream of the
+    * connection on the socket.
+    */
+   private class Session extends OutboundQueue {
+
+      private final SocketChannel channel;
+      /** Guarded by this. */
+      private final Deque<ByteBuffer> pending;
+      /** Guarded by this. */
+      private boolean writeScheduled;
+      /** Guarded by this. */
+      private boolean closing;
+      private EventLoop loop;
+
+      // Only touched by the event loop
+      private AbstractFilteredConnection connection;
+      private volatile SelectionKey key;
+      private volatile boolean reading = true;
+
+      private final Runnable writeTask = new Runnable() {
+
+         public void run() {
+            synchronized (Session.this) {
+               writeScheduled = false;
+            }
+            write();
+         }
+      };
+
+      public Session(SocketChannel channel) {
+         this.channel = channel;
+         this.pending = new ArrayDeque<ByteBuffer>();
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         synchronized (this) {
+            if (closing) {
+               throw new IOException("Connection closed.");
+            }
+            pending.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+         }
+         queued(len);
+      }
+
+      @Override
+      public void flush() {
+         EventLoop target;
+
+         synchronized (this) {
+            if (loop == null || writeScheduled || pending.isEmpty()) {
+               return;
+            }
+            writeScheduled = true;
+            target = loop;
+         }
+         target.submit(writeTask);
+      }
+
+      private void register(AbstractFilteredConnection connection, EventLoop loop) {
+         this.connection = connection;
+
+         synchronized (this) {
+            this.loop = loop;
+         }
+         loop.submit(new Runnable() {
+
+            public void run() {
+               try {
+                  channel.configureBlocking(false);
+                  key = channel.register(Session.this.loop.selector,
+                          reading ? SelectionKey.OP_READ : 0, Session.this);
+               } catch (IOException ex) {
+                  Logger.getLogger(NioTransport.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+                  Session.this.connection.close();
+                  return;
+               }
+               write();
+            }
+         });
+      }
+
+      private void setReading(boolean reading) {
+         EventLoop target;
+
+         this.reading = reading;
+         synchronized (this) {
+            target = loop;
+         }
+         if (target != null) {
+            target.submit(new Runnable() {
+
+               public void run() {
+                  SelectionKey current;
+
+                  current = key;
+                  if (current != null && current.isValid() && !isClosing()) {
+                     if (Session.this.reading) {
+                        current.interestOps(current.interestOps() | SelectionKey.OP_READ);
+                     } else {
+                        current.interestOps(current.interestOps() & ~SelectionKey.OP_READ);
+                     }
+                  }
+               }
+            });
+         }
+      }
+
+      /** Called by the event loop when the socket is readable. */
+      private void read(EventLoop loop) {
+         ByteBuffer buffer;
+         int count;
+
+         buffer = connection.isRelaying() ? loop.directBuffer : loop.buffer;
+         try {
+            buffer.clear();
+            count = channel.read(buffer);
+         } catch (IOException ex) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+            count = -1;
+         }
+
+         if (count < 0) {
+            connection.close();
+            return;
+         }
+
+         buffer.flip();
+         if (buffer == loop.directBuffer) {
+            relay(buffer);
+            if (buffer.hasRemaining()) {
+               // The rest after the relayed line is parsed
+               loop.buffer.clear();
+               loop.buffer.put(buffer);
+               buffer = loop.buffer;
+               buffer.flip();
+            }
+         }
+         try {
+            if (buffer.hasRemaining()) {
+               connection.read(buffer);
+            }
+            connection.drained();
+         } catch (IOException ex) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+            connection.close();
+         } catch (RuntimeException ex) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+         }
+      }
+
+      /** Copy the bytes the connection does not want to parse to the peer. */
+      private void relay(ByteBuffer buffer) {
+         Session peer;
+         int length;
+         int limit;
+
+         length = connection.getRelayLength(buffer);
+         if (length == 0) {
+            return;
+         }
+
+         limit = buffer.limit();
+         buffer.limit(buffer.position() + length);
+         peer = sessions.get(connection.getPeer().getSocket().getChannel());
+         if (peer == null) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.FINE, "peer closed, relayed bytes dropped");
+            buffer.position(buffer.limit());
+         } else {
+            connection.getPeer().getOutput().flush();
+            peer.writeRelayed(buffer);
+         }
+         buffer.limit(limit);
+      }
+
+      /**
+       * Write the bytes without copying them if nothing else is queued, else
+       * queue a copy.
+       */
+      private void writeRelayed(ByteBuffer buffer) {
+         int copied = 0;
+
+         synchronized (this) {
+            if (closing) {
+               buffer.position(buffer.limit());
+               return;
+            }
+            if (pending.isEmpty() && key != null && key.isValid()) {
+               try {
+                  channel.write(buffer);
+               } catch (IOException ex) {
+                  Logger.getLogger(NioTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+                  buffer.position(buffer.limit());
+                  return;
+               }
+            }
+            if (buffer.hasRemaining()) {
+               ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+
+               copy.put(buffer);
+               copy.flip();
+               pending.add(copy);
+               copied = copy.remaining();
+            }
+         }
+         if (copied > 0) {
+            queued(copied);
+         }
+         flush();
+      }
+
+      /** Called by the event loop to write the queued output. */
+      private void write() {
+         boolean drained;
+         long written = 0;
+
+         if (key == null || !key.isValid()) {
+            return;
+         }
+
+         synchronized (this) {
+            try {
+               while (!pending.isEmpty()) {
+                  ByteBuffer buffer = pending.peek();
+
+                  written += channel.write(buffer);
+                  if (buffer.hasRemaining()) {
+                     break;
+                  }
+                  pending.poll();
+               }
+            } catch (IOException ex) {
+               Logger.getLogger(NioTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+               for (ByteBuffer buffer : pending) {
+                  written += buffer.remaining();
+               }
+               pending.clear();
+               closing = true;
+            }
+            drained = pending.isEmpty();
+         }
+         sent(written);
+
+         try {
+            if (drained) {
+               key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+               if (isClosing()) {
+                  release();
+               }
+            } else {
+               key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+         } catch (CancelledKeyException ex) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.FINER, "write on cancelled key");
+         }
+      }
+
+      private synchronized boolean isClosing() {
+         return closing;
+      }
+
+      /** Stop reading and close the socket as soon as the output is written. */
+      private void closeWhenWritten() {
+         EventLoop target;
+
+         synchronized (this) {
+            closing = true;
+            target = loop;
+         }
+         if (target == null) {
+            release();
+         } else {
+            target.submit(new Runnable() {
+
+               public void run() {
+                  if (key != null && key.isValid()) {
+                     key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                  }
+                  write();
+                  if (key == null) {
+                     release();
+                  }
+               }
+            });
+         }
+      }
+
+      private void release() {
+         sessions.remove(channel);
+         if (key != null) {
+            key.cancel();
+         }
+         try {
+            channel.close();
+         } catch (IOException ex) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+         }
+      }
+   }
+
+   private class EventLoop extends Thread {
+
+      private final Selector selector;
+      private final Queue<Runnable> tasks;
+      private final ByteBuffer buffer;
+      private final ByteBuffer directBuffer;
+
+      public EventLoop(int number) throws IOException {
+         super("birch-nio-" + number);
+
+         selector = Selector.open();
+         tasks = new ConcurrentLinkedQueue<Runnable>();
+         buffer = ByteBuffer.allocate(BUFFER_SIZE);
+         directBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+
+      public void submit(Runnable task) {
+         tasks.add(task);
+         if (Thread.currentThread() != this) {
+            selector.wakeup();
+         }
+      }
+
+      @Override
+      public void run() {
+         try {
+            while (true) {
+               runTasks();
+               if (shutdown && tasks.isEmpty() && selector.keys().isEmpty()) {
+                  break;
+               }
+               selector.select(shutdown ? 100 : 0);
+               processSelectedKeys();
+            }
+         } catch (IOException ex) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+         } finally {
+            try {
+               selector.close();
+            } catch (IOException ex) {
+               Logger.getLogger(NioTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+            }
+         }
+      }
+
+      private void runTasks() {
+         Runnable task;
+
+         while ((task = tasks.poll()) != null) {
+            try {
+               task.run();
+            } catch (RuntimeException ex) {
+               Logger.getLogger(NioTransport.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+            }
+         }
+      }
+
+      private void processSelectedKeys() {
+         Iterator<SelectionKey> keys;
+
+         keys = selector.selectedKeys().iterator();
+         while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            Session session = (Session) key.attachment();
+
+            keys.remove();
+            try {
+               if (key.isValid() && key.isWritable()) {
+                  session.write();
+               }
+               if (key.isValid() && key.isReadable()) {
+                  session.read(this);
+               }
+            } catch (CancelledKeyException ex) {
+               Logger.getLogger(NioTransport.class.getName()).log(Level.FINER, "key cancelled");
+            }
+         }
+      }
+   }
+
+   private final EventLoop[] loops;
+   private final AtomicInteger nextLoop;
+   private final ConcurrentMap<SocketChannel, Session> sessions;
+   private volatile boolean shutdown;
+
+   public NioTransport() throws IOException {
+      this(Runtime.getRuntime().availableProcessors());
+   }
+
+   public NioTransport(int threads) throws IOException {
+      nextLoop = new AtomicInteger();
+      sessions = new ConcurrentHashMap<SocketChannel, Session>();
+
+      loops = new EventLoop[Math.max(1, threads)];
+      for (int i = 0; i < loops.length; ++i) {
+         loops[i] = new EventLoop(i);
+      }
+      for (EventLoop loop : loops) {
+         loop.start();
+      }
+   }
+
+   public ServerSocket listen(InetAddress address, int port, int backlog) throws IOException {
+      ServerSocketChannel channel;
+
+      channel = ServerSocketChannel.open();
+      channel.socket().bind(new InetSocketAddress(address, port), backlog);
+
+      return channel.socket();
+   }
+
+   public Socket connect(String host, int port, int timeout) throws IOException {
+      SocketChannel channel;
+
+      channel = SocketChannel.open();
+      try {
+         channel.socket().connect(new InetSocketAddress(host, port), timeout);
+      } catch (IOException ex) {
+         channel.close();
+         throw ex;
+      }
+
+      return channel.socket();
+   }
+
+   public OutboundQueue getOutputStream(Socket socket) throws IOException {
+      return getSession(socket);
+   }
+
+   public void execute(AbstractFilteredConnection connection) {
+      if (shutdown) {
+         throw new RejectedExecutionException("Transport is shut down.");
+      }
+
+      try {
+         getSession(connection.getSocket()).register(connection, nextLoop());
+      } catch (IOException ex) {
+         throw new RejectedExecutionException(ex);
+      }
+   }
+
+   public void setReading(AbstractFilteredConnection connection, boolean reading) {
+      Session session;
+
+      session = sessions.get(connection.getSocket().getChannel());
+      if (session != null) {
+         session.setReading(reading);
+      }
+   }
+
+   public void close(AbstractFilteredConnection connection) {
+      Session session;
+
+      session = sessions.get(connection.getSocket().getChannel());
+      if (session != null) {
+         session.closeWhenWritten();
+      } else {
+         try {
+            connection.getSocket().close();
+         } catch (IOException ex) {
+            Logger.getLogger(NioTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+         }
+      }
+   }
+
+   public void shutdown() {
+      shutdown = true;
+      for (EventLoop loop : loops) {
+         loop.selector.wakeup();
+      }
+   }
+
+   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline;
+
+      deadline = System.nanoTime() + unit.toNanos(timeout);
+      for (EventLoop loop : loops) {
+         loop.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+         if (loop.isAlive()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private Session getSession(Socket socket) throws IOException {
+      SocketChannel channel;
+      Session session;
+
+      channel = socket.getChannel();
+      if (channel == null) {
+         throw new IOException("Socket " + socket + " was not created by " + NioTransport.class.getName());
+      }
+
+      session = sessions.get(channel);
+      if (session == null) {
+         session = new Session(channel);
+         Session other = sessions.putIfAbsent(channel, session);
+         if (other != null) {
+            session = other;
+         }
+      }
+
+      return session;
+   }
+
+   private EventLoop nextLoop() {
+      return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+   }
+}
@@ -0,0 +1,140 @@
+/*
+ * OutboundQueue.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.io.OutputStream;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The output stream of a connection which queues the bytes written until
+ * the socket takes them.
+ *
+ * The listener is told when the queue grows to the high watermark and again
+ * when it shrank to the low watermark, so the connection writing to it can
+ * stop reading until the destination catches up.
+ *
+ * @author Beselius
+ */
+public abstract class OutboundQueue extends OutputStream {
+
+   /** Bytes. */
+   public static final int DEFAULT_HIGH_WATERMARK = 65536;
+   /** Bytes. */
+   public static final int DEFAULT_LOW_WATERMARK = 16384;
+
+   public static interface Listener {
+
+      /** The queue reached the high watermark. */
+      void high();
+
+      /** The queue shrank to the low watermark after it was high. */
+      void low();
+   }
+
+   /**
+    * Guards the count and the high flag together, else the queue might be
+    * emptied between counting bytes and raising the flag, and the peer would
+    * stay paused with nothing left to write. The listener is called holding
+    * it, so that high and low are told in order.
+    */
+   private final Object lock = new Object();
+   private final AtomicLong queued = new AtomicLong();
+   private final AtomicLong peak = new AtomicLong();
+   private final AtomicBoolean high = new AtomicBoolean();
+   private final AtomicLong highCount = new AtomicLong();
+   private volatile long lowWatermark = DEFAULT_LOW_WATERMARK;
+   private volatile long highWatermark = DEFAULT_HIGH_WATERMARK;
+   private volatile Listener listener;
+
+   public void setWatermarks(long lowWatermark, long highWatermark, Listener listener) {
+      this.lowWatermark = lowWatermark;
+      this.highWatermark = Math.max(lowWatermark, highWatermark);
+      this.listener = listener;
+   }
+
+   /**
+    * Called after bytes are added to the queue.
+    */
+   protected void queued(long bytes) {
+      long now;
+      Listener target;
+
+      synchronized (lock) {
+         now = queued.addAndGet(bytes);
+         if (now > peak.get()) {
+            peak.set(now);
+         }
+
+         target = listener;
+         if (now >= highWatermark && target != null && !high.get()) {
+            high.set(true);
+            highCount.incrementAndGet();
+            target.high();
+         }
+      }
+   }
+
+   /**
+    * Called after bytes are written to the socket or dropped.
+    */
+   protected void sent(long bytes) {
+      long now;
+      Listener target;
+
+      synchronized (lock) {
+         now = queued.addAndGet(-bytes);
+         target = listener;
+         if (now <= lowWatermark && target != null && high.get()) {
+            high.set(false);
+            target.low();
+         }
+      }
+   }
+
+   /**
+    * @return the bytes waiting to be written to the socket.
+    */
+   public long getQueued() {
+      return queued.get();
+   }
+
+   public long getPeak() {
+      return peak.get();
+   }
+
+   /**
+    * @return how often the queue reached the high watermark.
+    */
+   public long getHighCount() {
+      return highCount.get();
+   }
+
+   public boolean isHigh() {
+      return high.get();
+   }
+
+   @Override
+   public String toString() {
+      return "queued: " + getQueued() + ", peak: " + getPeak() + ", high: " + getHighCount();
+   }
+}
@@ -0,0 +1,260 @@
+/*
+ * PendingBuffer.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lines a client sends before its server is connected.
+ *
+ * The lines are kept as bytes in a ring buffer limited to a number of bytes
+ * per connection. All buffers of a proxy share a {@link Budget}. What happens
+ * when a line does not fit is decided by the overflow policy.
+ *
+ * @author Beselius
+ */
+public class PendingBuffer {
+
+   /** Drop the oldest lines to make room. */
+   public static final String OVERFLOW_DROP_OLDEST = "dropOldest";
+   /** Close the connection. */
+   public static final String OVERFLOW_CLOSE = "close";
+   /** Stop reading from the client until the server is connected. */
+   public static final String OVERFLOW_PAUSE = "pause";
+
+   public static final String DEFAULT_OVERFLOW = OVERFLOW_PAUSE;
+   /** Bytes per connection. */
+   public static final int DEFAULT_LIMIT = 16384;
+   /** Bytes of all connections of a proxy. */
+   public static final long DEFAULT_BUDGET = 4 * 1024 * 1024;
+
+   /**
+    * The memory all pending buffers of a proxy may use, and what happened to
+    * them.
+    */
+   public static class Budget {
+
+      private final long limit;
+      private final AtomicLong used;
+      private final AtomicLong peak;
+      private final AtomicInteger buffers;
+      private final AtomicLong droppedLines;
+      private final AtomicLong closedConnections;
+      private final AtomicLong pauses;
+
+      public Budget(long limit) {
+         this.limit = limit;
+         used = new AtomicLong();
+         peak = new AtomicLong();
+         buffers = new AtomicInteger();
+         droppedLines = new AtomicLong();
+         closedConnections = new AtomicLong();
+         pauses = new AtomicLong();
+      }
+
+      /**
+       * @return FALSE when the bytes would exceed the limit.
+       */
+      private boolean reserve(int bytes) {
+         long current;
+
+         do {
+            current = used.get();
+            if (current + bytes > limit) {
+               return false;
+            }
+         } while (!used.compareAndSet(current, current + bytes));
+         updatePeak(current + bytes);
+
+         return true;
+      }
+
+      /** Take the bytes even if they exceed the limit. */
+      private void force(int bytes) {
+         updatePeak(used.addAndGet(bytes));
+      }
+
+      private void release(long bytes) {
+         used.addAndGet(-bytes);
+      }
+
+      private void updatePeak(long value) {
+         long current;
+
+         do {
+            current = peak.get();
+         } while (value > current && !peak.compareAndSet(current, value));
+      }
+
+      public long getLimit() {
+         return limit;
+      }
+
+      /**
+       * @return the bytes buffered by all connections now.
+       */
+      public long getUsed() {
+         return used.get();
+      }
+
+      public long getPeak() {
+         return peak.get();
+      }
+
+      /**
+       * @return the number of connections with buffered lines.
+       */
+      public int getBuffers() {
+         return buffers.get();
+      }
+
+      public long getDroppedLines() {
+         return droppedLines.get();
+      }
+
+      public long getClosedConnections() {
+         return closedConnections.get();
+      }
+
+      public long getPauses() {
+         return pauses.get();
+      }
+
+      @Override
+      public String toString() {
+         return "pending bytes: " + getUsed() + "/" + getLimit() + ", peak: " + getPeak()
+                 + ", connections: " + getBuffers() + ", dropped lines: " + getDroppedLines()
+                 + ", closed: " + getClosedConnections() + ", paused: " + getPauses();
+      }
+   }
+
+   private final int limit;
+   private final String overflow;
+   private final Budget budget;
+   private final ArrayDeque<byte[]> lines;
+   private int bytes;
+   private boolean paused;
+
+   public PendingBuffer(int limit, String overflow, Budget budget) {
+      this.limit = limit;
+      this.overflow = overflow;
+      this.budget = budget;
+      lines = new ArrayDeque<byte[]>();
+   }
+
+   /**
+    * Buffer a copy of the line.
+    *
+    * @return FALSE when the line does not fit and the overflow policy is
+    * {@link #OVERFLOW_CLOSE}, the line is not buffered, or
+    * {@link #OVERFLOW_PAUSE}, the line is buffered anyway and the caller
+    * should stop reading.
+    */
+   public synchronized boolean add(byte[] bytes, int offset, int length) {
+      while (!fits(length) && OVERFLOW_DROP_OLDEST.equals(overflow) && !lines.isEmpty()) {
+         release(lines.poll().length);
+         budget.droppedLines.incrementAndGet();
+      }
+
+      if (this.bytes + length <= limit && budget.reserve(length)) {
+         append(bytes, offset, length);
+         return true;
+      }
+
+      if (OVERFLOW_CLOSE.equals(overflow)) {
+         budget.closedConnections.incrementAndGet();
+         return false;
+      }
+      if (OVERFLOW_PAUSE.equals(overflow)) {
+         budget.force(length);
+         append(bytes, offset, length);
+         if (!paused) {
+            paused = true;
+            budget.pauses.incrementAndGet();
+         }
+         return false;
+      }
+
+      // no room even without the older lines
+      budget.droppedLines.incrementAndGet();
+      return true;
+   }
+
+   /**
+    * Empty the buffer.
+    * @return the lines buffered, oldest first.
+    */
+   public synchronized List<byte[]> clear() {
+      List<byte[]> result;
+
+      result = new ArrayList<byte[]>(lines);
+      paused = false;
+      if (!lines.isEmpty()) {
+         lines.clear();
+         release(bytes);
+      }
+
+      return result;
+   }
+
+   public String getOverflow() {
+      return overflow;
+   }
+
+   public synchronized int getBytes() {
+      return bytes;
+   }
+
+   public synchronized int getLines() {
+      return lines.size();
+   }
+
+   /**
+    * @return TRUE when the line fits the limits, without taking it from the
+    * budget yet.
+    */
+   private boolean fits(int length) {
+      return bytes + length <= limit && budget.getUsed() + length <= budget.getLimit();
+   }
+
+   private void append(byte[] bytes, int offset, int length) {
+      if (lines.isEmpty()) {
+         budget.buffers.incrementAndGet();
+      }
+      lines.add(Arrays.copyOfRange(bytes, offset, offset + length));
+      this.bytes += length;
+   }
+
+   /** Called after the lines are removed. */
+   private void release(int length) {
+      bytes -= length;
+      budget.release(length);
+      if (lines.isEmpty()) {
+         budget.buffers.decrementAndGet();
+      }
+   }
+}
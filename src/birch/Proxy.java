@@ -35,12 +35,14 @@ import java.util.logging.Logger;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import java.util.concurrent.locks.*;
 
 import java.io.*;
 
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.charset.Charset;
 
 /**
@@ -49,6 +51,10 @@ import java.nio.charset.Charset;
  */
 public class Proxy extends Thread {
 
+   /**
+    * The settings of a proxy. The settings of the transport and the buffers
+    * have defaults, so a configuration need only name the ports.
+    */
    public static interface Config {
 
       int getPort();
@@ -64,6 +70,83 @@ public class Proxy extends Thread {
       int getDefaultServerPort();
 
       String getCharset();
+
+      /**
+       * @return {@link Proxy#TRANSPORT_THREADS}, {@link Proxy#TRANSPORT_VIRTUAL}
+       * or {@link Proxy#TRANSPORT_NIO}.
+       */
+      default String getTransport() {
+         return DEFAULT_TRANSPORT;
+      }
+
+      /**
+       * @return milliseconds output may be delayed to be written together
+       * with the following lines.
+       */
+      default int getFlushDelay() {
+         return CoalescingWriter.DEFAULT_FLUSH_DELAY;
+      }
+
+      /**
+       * @return number of buffered characters which cause the output to be
+       * written.
+       */
+      default int getFlushThreshold() {
+         return CoalescingWriter.DEFAULT_FLUSH_THRESHOLD;
+      }
+
+      /**
+       * @return the maximum length of a line in bytes, longer lines are dropped.
+       */
+      default int getMaxLineLength() {
+         return LineFramer.DEFAULT_MAX_LINE_LENGTH;
+      }
+
+      /**
+       * @return milliseconds to wait for the connection to the server.
+       */
+      default int getConnectTimeout() {
+         return DEFAULT_CONNECT_TIMEOUT;
+      }
+
+      /**
+       * @return bytes of lines buffered per client until the server is connected.
+       */
+      default int getPendingLimit() {
+         return PendingBuffer.DEFAULT_LIMIT;
+      }
+
+      /**
+       * @return bytes of lines buffered by all clients until their servers are
+       * connected.
+       */
+      default long getPendingBudget() {
+         return PendingBuffer.DEFAULT_BUDGET;
+      }
+
+      /**
+       * @return {@link PendingBuffer#OVERFLOW_DROP_OLDEST},
+       * {@link PendingBuffer#OVERFLOW_CLOSE} or {@link PendingBuffer#OVERFLOW_PAUSE}.
+       */
+      default String getPendingOverflow() {
+         return PendingBuffer.DEFAULT_OVERFLOW;
+      }
+
+      /**
+       * @return bytes of output queued for a connection at which reading from its
+       * peer stops.
+       */
+      default int getQueueHighWatermark() {
+         return OutboundQueue.DEFAULT_HIGH_WATERMARK;
+      }
+
+      /**
+       * @return bytes of output queued for a connection at which reading from its
+       * peer starts again.
+       */
+      default int getQueueLowWatermark() {
+         return OutboundQueue.DEFAULT_LOW_WATERMARK;
+      }
    }
 
    public static class PropertiesConfig implements Config {
@@ -77,6 +160,16 @@ public class Proxy extends Thread {
       private String[] filterChain;
       private String[] pluginDirectories;
       private String charset;
+      private String transport;
+      private int flushDelay;
+      private int flushThreshold;
+      private int maxLineLength;
+      private int connectTimeout;
+      private int pendingLimit;
+      private long pendingBudget;
+      private String pendingOverflow;
+      private int queueHighWatermark;
+      private int queueLowWatermark;
 
       public PropertiesConfig(String filename)
               throws FileNotFoundException, IOException {
@@ -113,6 +206,50 @@ public class Proxy extends Thread {
          return charset;
       }
 
+      public String getTransport() {
+         return transport;
+      }
+
+      public int getFlushDelay() {
+         return flushDelay;
+      }
+
+      public int getFlushThreshold() {
+         return flushThreshold;
+      }
+
+      public int getMaxLineLength() {
+         return maxLineLength;
+      }
+
+      public int getConnectTimeout() {
+         return connectTimeout;
+      }
+
+      public int getPendingLimit() {
+         return pendingLimit;
+      }
+
+      public long getPendingBudget() {
+         return pendingBudget;
+      }
+
+      public String getPendingOverflow() {
+         return pendingOverflow;
+      }
+
+      public int getQueueHighWatermark() {
+         return queueHighWatermark;
+      }
+
+      public int getQueueLowWatermark() {
+         return queueLowWatermark;
+      }
+
+      private static String[] split(String list) {
+         return list.trim().length() == 0 ? new String[0] : list.trim().split("\\s+");
+      }
+
       private void loadFromFile() throws FileNotFoundException, IOException {
          Properties properties;
          InputStream inputStream;
@@ -126,9 +263,27 @@ public class Proxy extends Thread {
          address = properties.getProperty("address", DEFAULT_ADDRESS);
          defaultServerPort = Integer.parseInt(properties.getProperty("defaultServerPort", String.valueOf(DEFAULT_PORT)));
          defaultServer = properties.getProperty("defaultServer", "");
-         filterChain = properties.getProperty("filterchain", "").split(" ");
-         pluginDirectories = properties.getProperty("plugindirs", "").split(" ");
+         filterChain = split(properties.getProperty("filterchain", ""));
+         pluginDirectories = split(properties.getProperty("plugindirs", ""));
          charset = properties.getProperty("charset", Charset.defaultCharset().displayName());
+         transport = properties.getProperty("transport", DEFAULT_TRANSPORT);
+         flushDelay = Integer.parseInt(properties.getProperty("flushDelay",
+                 String.valueOf(CoalescingWriter.DEFAULT_FLUSH_DELAY)));
+         flushThreshold = Integer.parseInt(properties.getProperty("flushThreshold",
+                 String.valueOf(CoalescingWriter.DEFAULT_FLUSH_THRESHOLD)));
+         maxLineLength = Integer.parseInt(properties.getProperty("maxLineLength",
+                 String.valueOf(LineFramer.DEFAULT_MAX_LINE_LENGTH)));
+         connectTimeout = Integer.parseInt(properties.getProperty("connectTimeout",
+                 String.valueOf(DEFAULT_CONNECT_TIMEOUT)));
+         pendingLimit = Integer.parseInt(properties.getProperty("pendingLimit",
+                 String.valueOf(PendingBuffer.DEFAULT_LIMIT)));
+         pendingBudget = Long.parseLong(properties.getProperty("pendingBudget",
+                 String.valueOf(PendingBuffer.DEFAULT_BUDGET)));
+         pendingOverflow = properties.getProperty("pendingOverflow", PendingBuffer.DEFAULT_OVERFLOW);
+         queueHighWatermark = Integer.parseInt(properties.getProperty("queueHighWatermark",
+                 String.valueOf(OutboundQueue.DEFAULT_HIGH_WATERMARK)));
+         queueLowWatermark = Integer.parseInt(properties.getProperty("queueLowWatermark",
+                 String.valueOf(OutboundQueue.DEFAULT_LOW_WATERMARK)));
       }
    }
 
@@ -136,6 +291,12 @@ public class Proxy extends Thread {
    public final static String DEFAULT_CONFIG = "birch.config";
    public final static int DEFAULT_PORT = 6667;
    public final static String DEFAULT_ADDRESS = "0.0.0.0";
+   public final static String TRANSPORT_THREADS = "threads";
+   public final static String TRANSPORT_VIRTUAL = "virtual";
+   public final static String TRANSPORT_NIO = "nio";
+   public final static String DEFAULT_TRANSPORT = TRANSPORT_THREADS;
+   /** Milliseconds. */
+   public final static int DEFAULT_CONNECT_TIMEOUT = 10000;
 
    private volatile boolean running;
 
@@ -150,7 +311,9 @@ public class Proxy extends Thread {
    private String listenAddress;
    private String charset;
 
-   private final ExecutorService executor;
+   private final Transport transport;
+   private final ExecutorService connectExecutor;
+   private final PendingBuffer.Budget pendingBudget;
    private final Set<ClientConnection> clientConnections;
 
    public Proxy(String serverHost, int serverPort)
@@ -203,7 +366,39 @@ public class Proxy extends Thread {
       filterChainLock = new ReentrantLock();
       setConfig(config);
       clientConnections = Collections.synchronizedSet(new HashSet<ClientConnection>());
-      executor = Executors.newFixedThreadPool(5);
+      transport = createTransport(config.getTransport());
+      pendingBudget = new PendingBuffer.Budget(config.getPendingBudget());
+      connectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+         public Thread newThread(Runnable runnable) {
+            Thread thread;
+
+            thread = new Thread(runnable, "birch-connect");
+            thread.setDaemon(true);
+
+            return thread;
+         }
+      });
+   }
+
+   protected Transport createTransport(String name) throws IOException {
+      if (TRANSPORT_NIO.equalsIgnoreCase(name)) {
+         return new NioTransport();
+      }
+      if (TRANSPORT_VIRTUAL.equalsIgnoreCase(name)) {
+         try {
+            return new VirtualThreadTransport();
+         } catch (UnsupportedOperationException ex) {
+            Logger.getLogger(Proxy.class.getName()).log(Level.WARNING,
+                    ex.getLocalizedMessage() + " Using '" + TRANSPORT_THREADS + "'");
+            return new ThreadTransport();
+         }
+      }
+      if (name != null && !TRANSPORT_THREADS.equalsIgnoreCase(name)) {
+         Logger.getLogger(Proxy.class.getName()).log(Level.WARNING,
+                 "Unknown transport '" + name + "', using '" + TRANSPORT_THREADS + "'");
+      }
+      return new ThreadTransport();
    }
 
    private void setConfig(Config config) throws ClassNotFoundException, IOException {
@@ -238,7 +433,7 @@ public class Proxy extends Thread {
          InetAddress address;
 
          address = InetAddress.getByName(listenAddress);
-         socket = new ServerSocket(listenPort, BACKLOG, address);
+         socket = transport.listen(address, listenPort, BACKLOG);
 
          try {
             socket.setSoTimeout(3000);
@@ -256,10 +451,14 @@ public class Proxy extends Thread {
                }
             }
             Logger.getLogger(Proxy.class.getName()).log(Level.INFO, "Interrupted");
+         } catch (ClosedByInterruptException ex) {
+            // The accept of a socket channel is not left by a timeout but by the interrupt
+            Logger.getLogger(Proxy.class.getName()).log(Level.INFO, "Interrupted");
          } catch (IOException ex) {
             Logger.getLogger(Proxy.class.getName()).log(Level.SEVERE, null, ex);
          } finally {
-            executor.shutdown();
+            connectExecutor.shutdownNow();
+            transport.shutdown();
             try {
                socket.close();
             } catch (IOException ex) {
@@ -276,7 +475,7 @@ public class Proxy extends Thread {
             }
             try {
                interrupted();
-               executor.awaitTermination(5, TimeUnit.SECONDS);
+               transport.awaitTermination(5, TimeUnit.SECONDS);
             } catch (InterruptedException ex) {
                Logger.getLogger(Proxy.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -287,34 +486,47 @@ public class Proxy extends Thread {
       }
    }
 
+   /**
+    * Start reading from the client. The connection to the server is opened
+    * by another thread, so a slow server does not hold up the accept loop.
+    */
    protected ClientConnection addClientConnection(Socket clientSocket) {
-      ClientConnection result = null;
+      final ClientConnection result;
 
       filterChainLock.lock();
       try {
          result = new ClientConnection(
-                 filterChain.getNewList(),
+                 filterChain.getNewList(Charset.forName(charset)),
                  this,
                  clientSocket,
                  serverHost,
                  serverPort,
                  charset
               );
-
-         executor.execute(result);
          clientConnections.add(result);
-
-         Logger.getLogger(Proxy.class.getName()).log(Level.INFO, "client added");
-      } catch (RejectedExecutionException ex) {
-         Logger.getLogger(Proxy.class.getName()).log(Level.SEVERE, null, ex);
-         result = null;
       } catch (IOException ex) {
          Logger.getLogger(Proxy.class.getName()).log(Level.SEVERE, null, ex);
-         result = null;
+         return null;
       } finally {
          filterChainLock.unlock();
       }
 
+      try {
+         transport.execute(result);
+         connectExecutor.execute(new Runnable() {
+
+            public void run() {
+               result.connect();
+            }
+         });
+
+         Logger.getLogger(Proxy.class.getName()).log(Level.INFO, "client added");
+      } catch (RejectedExecutionException ex) {
+         Logger.getLogger(Proxy.class.getName()).log(Level.SEVERE, null, ex);
+         result.close();
+         return null;
+      }
+
       return result;
    }
 
@@ -324,7 +536,23 @@ public class Proxy extends Thread {
    }
 
    public void execute(AbstractFilteredConnection connection) {
-      executor.execute(connection);
+      transport.execute(connection);
+   }
+
+   public Transport getTransport() {
+      return transport;
+   }
+
+   public Config getConfig() {
+      return config;
+   }
+
+   /**
+    * @return the memory used by the lines of clients whose server is not
+    * connected yet.
+    */
+   public PendingBuffer.Budget getPendingBudget() {
+      return pendingBudget;
    }
 
    public ClientConnection[] getClientConnections() {
@@ -340,7 +568,7 @@ public class Proxy extends Thread {
       try {
          this.filterChain = filterChain;
          for (ClientConnection client : clientConnections) {
-            client.setNext(filterChain.getNewList());
+            client.setNext(filterChain.getNewList(Charset.forName(charset)));
          }
       } finally {
          filterChainLock.unlock();
@@ -22,9 +22,10 @@ package birch;
 
 import java.io.IOException;
 
-import java.net.Socket;
 import java.net.UnknownHostException;
 
+import java.util.List;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,9 +40,10 @@ public class ServerConnection extends AbstractFilteredConnection {
    private ClientConnection clientConnection;
    private AtomicBoolean stopping;
 
-   public ServerConnection(ClientConnection clientConnection, String host, int port, String charset)
+   public ServerConnection(ClientConnection clientConnection, Proxy proxy, String host, int port, String charset)
            throws UnknownHostException, IOException {
-      super(new Socket(host, port), charset);
+      super(proxy.getTransport().connect(host, port, proxy.getConfig().getConnectTimeout()),
+            charset, proxy.getTransport(), proxy.getConfig());
 
       this.clientConnection = clientConnection;
       this.stopping = new AtomicBoolean(false);
@@ -58,6 +60,11 @@ public class ServerConnection extends AbstractFilteredConnection {
       }
    }
 
+   @Override
+   protected boolean isFiltered(byte[] bytes, int offset, int length) {
+      return clientConnection.isReceiveFiltered(bytes, offset, length);
+   }
+
    @Override
    protected void parse(String line) {
       Logger.getLogger(ServerConnection.class.getName())
@@ -65,4 +72,33 @@ public class ServerConnection extends AbstractFilteredConnection {
 
       clientConnection.receive(line);
    }
+
+   @Override
+   protected void parse(List<String> lines) {
+      Logger logger;
+
+      logger = Logger.getLogger(ServerConnection.class.getName());
+      if (logger.isLoggable(Level.FINEST)) {
+         for (String line : lines) {
+            logger.log(Level.FINEST, "parse line from server: " + line);
+         }
+      }
+
+      clientConnection.receive(lines);
+   }
+
+   @Override
+   protected void drained() {
+      clientConnection.getOutput().flush();
+   }
+
+   @Override
+   protected AbstractFilteredConnection getPeer() {
+      return clientConnection;
+   }
+
+   @Override
+   protected boolean isPassthrough() {
+      return clientConnection.isPassthrough();
+   }
 }
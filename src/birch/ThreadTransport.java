@@ -0,0 +1,298 @@
+/*
+ * ThreadTransport.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking sockets, every connection is read by its own thread.
+ *
+ * @author Beselius
+ */
+public class ThreadTransport implements Transport {
+
+   /** Milliseconds to wait for the queued output of a closed connection. */
+   public static final int CLOSE_TIMEOUT = 1000;
+
+   /**
+    * Queues the output of a connection. A task of the executor writes it to
+    * the socket, so the connection writing never blocks on a slow peer.
+    */
+   private class QueuedOutputStream extends OutboundQueue {
+
+      private final OutputStream out;
+      private final ReentrantLock lock;
+      private final Condition drained;
+      /** Guarded by lock. */
+      private final Deque<byte[]> chunks;
+      /** Guarded by lock. */
+      private boolean writing;
+      /** Guarded by lock. */
+      private boolean closed;
+      /** Guarded by lock. */
+      private IOException failure;
+
+      private final Runnable writeTask = new Runnable() {
+
+         public void run() {
+            writeQueued();
+         }
+      };
+
+      public QueuedOutputStream(OutputStream out) {
+         this.out = out;
+         lock = new ReentrantLock();
+         drained = lock.newCondition();
+         chunks = new ArrayDeque<byte[]>();
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         lock.lock();
+         try {
+            if (failure != null) {
+               throw new IOException(failure.getLocalizedMessage(), failure);
+            }
+            if (closed) {
+               throw new IOException("Connection closed.");
+            }
+            chunks.add(Arrays.copyOfRange(b, off, off + len));
+         } finally {
+            lock.unlock();
+         }
+         queued(len);
+      }
+
+      @Override
+      public void flush() {
+         lock.lock();
+         try {
+            if (writing || chunks.isEmpty()) {
+               return;
+            }
+            writing = true;
+         } finally {
+            lock.unlock();
+         }
+
+         try {
+            executor.execute(writeTask);
+         } catch (RejectedExecutionException ex) {
+            // shutting down, write on this thread
+            writeQueued();
+         }
+      }
+
+      @Override
+      public void close() {
+         lock.lock();
+         try {
+            closed = true;
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      /**
+       * @return FALSE when there is still output queued after the timeout.
+       */
+      public boolean awaitDrained(long timeout) throws InterruptedException {
+         long nanos;
+
+         nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+         lock.lock();
+         try {
+            while ((writing || !chunks.isEmpty()) && nanos > 0) {
+               nanos = drained.awaitNanos(nanos);
+            }
+            return !writing && chunks.isEmpty();
+         } finally {
+            lock.unlock();
+         }
+      }
+
+      private void writeQueued() {
+         byte[] chunk;
+
+         while (true) {
+            lock.lock();
+            try {
+               chunk = chunks.poll();
+               if (chunk == null) {
+                  writing = false;
+                  drained.signalAll();
+                  break;
+               }
+            } finally {
+               lock.unlock();
+            }
+
+            try {
+               out.write(chunk);
+            } catch (IOException ex) {
+               fail(ex, chunk.length);
+               return;
+            }
+            sent(chunk.length);
+         }
+
+         try {
+            out.flush();
+         } catch (IOException ex) {
+            fail(ex, 0);
+         }
+      }
+
+      private void fail(IOException ex, long lost) {
+         Logger.getLogger(ThreadTransport.class.getName()).log(Level.FINE, ex.getLocalizedMessage(), ex);
+
+         lock.lock();
+         try {
+            failure = ex;
+            for (byte[] chunk : chunks) {
+               lost += chunk.length;
+            }
+            chunks.clear();
+            writing = false;
+            drained.signalAll();
+         } finally {
+            lock.unlock();
+         }
+         sent(lost);
+      }
+   }
+
+   private final ExecutorService executor;
+
+   public ThreadTransport() {
+      this(Executors.newCachedThreadPool());
+   }
+
+   public ThreadTransport(ExecutorService executor) {
+      this.executor = executor;
+   }
+
+   public ServerSocket listen(InetAddress address, int port, int backlog) throws IOException {
+      return new ServerSocket(port, backlog, address);
+   }
+
+   public Socket connect(String host, int port, int timeout) throws IOException {
+      Socket socket;
+
+      socket = new Socket();
+      try {
+         socket.connect(new InetSocketAddress(host, port), timeout);
+      } catch (IOException ex) {
+         socket.close();
+         throw ex;
+      }
+
+      return socket;
+   }
+
+   public OutboundQueue getOutputStream(Socket socket) throws IOException {
+      return new QueuedOutputStream(socket.getOutputStream());
+   }
+
+   public void execute(AbstractFilteredConnection connection) {
+      executor.execute(connection);
+   }
+
+   public void setReading(AbstractFilteredConnection connection, boolean reading) {
+      // The reading thread waits in AbstractFilteredConnection.run()
+   }
+
+   public void close(AbstractFilteredConnection connection) {
+      Socket socket;
+
+      socket = connection.getSocket();
+      if (connection.getOutputStream() instanceof QueuedOutputStream) {
+         try {
+            ((QueuedOutputStream) connection.getOutputStream()).awaitDrained(CLOSE_TIMEOUT);
+         } catch (InterruptedException ex) {
+            Logger.getLogger(ThreadTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+         }
+      }
+      if (!socket.isInputShutdown()) {
+         try {
+            socket.shutdownInput();
+         } catch (IOException ex) {
+            Logger.getLogger(ThreadTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+         }
+      }
+      if (!socket.isOutputShutdown()) {
+         try {
+            socket.shutdownOutput();
+         } catch (IOException ex) {
+            Logger.getLogger(ThreadTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+         }
+      }
+      if (!socket.isClosed()) {
+         try {
+            try {
+               Thread.sleep(100);
+            } catch (InterruptedException ex) {
+               Logger.getLogger(ThreadTransport.class.getName()).log(Level.SEVERE, ex.getLocalizedMessage(), ex);
+            }
+            socket.close();
+         } catch (IOException ex) {
+            Logger.getLogger(ThreadTransport.class.getName()).log(Level.WARNING, ex.getLocalizedMessage(), ex);
+         }
+      }
+   }
+
+   public void shutdown() {
+      executor.shutdown();
+   }
+
+   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return executor.awaitTermination(timeout, unit);
+   }
+
+   protected ExecutorService getExecutor() {
+      return executor;
+   }
+}
@@ -0,0 +1,77 @@
+/*
+ * Transport.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The way the sockets of a {@link Proxy} are created and how the
+ * {@link AbstractFilteredConnection}s on them are driven.
+ *
+ * @author Beselius
+ */
+public interface Transport {
+
+   /**
+    * Create the listening socket of the proxy.
+    */
+   ServerSocket listen(InetAddress address, int port, int backlog) throws IOException;
+
+   /**
+    * Open a connection to a server.
+    * @param timeout milliseconds, 0 waits until the connect fails.
+    */
+   Socket connect(String host, int port, int timeout) throws IOException;
+
+   /**
+    * @param socket a socket created or accepted by this transport.
+    * @return the stream the output of a connection on the socket is written
+    * to. Writing to it does not block.
+    */
+   OutboundQueue getOutputStream(Socket socket) throws IOException;
+
+   /**
+    * Start reading from the connection. The bytes read are handed to
+    * {@link AbstractFilteredConnection#read(java.nio.ByteBuffer)}.
+    */
+   void execute(AbstractFilteredConnection connection);
+
+   /**
+    * Stop or restart reading from the connection. Reading stops after the
+    * bytes read so far are handed to the connection.
+    */
+   void setReading(AbstractFilteredConnection connection, boolean reading);
+
+   /**
+    * Release the socket of the connection.
+    */
+   void close(AbstractFilteredConnection connection);
+
+   void shutdown();
+
+   boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,155 @@
+/*
+ * VirtualThreadTransport.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.time.Duration;
+
+import java.util.function.Consumer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Blocking sockets like {@link ThreadTransport}, but every connection is read
+ * by a virtual thread. Needs a Java 21 runtime.
+ *
+ * A virtual thread blocked in a socket read does not hold its carrier thread
+ * unless it is pinned to it. Pinned threads are counted with the JFR event
+ * {@value #PINNED_EVENT}.
+ *
+ * @author Beselius
+ */
+public class VirtualThreadTransport extends ThreadTransport {
+
+   public static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+   public static final Duration PINNED_THRESHOLD = Duration.ofMillis(20);
+
+   private final AtomicLong pinned;
+   private RecordingStream recording;
+
+   public VirtualThreadTransport() throws UnsupportedOperationException {
+      super(newVirtualThreadPerTaskExecutor());
+
+      pinned = new AtomicLong();
+      startPinnedMonitor();
+   }
+
+   /**
+    * @return TRUE when the runtime supports virtual threads.
+    */
+   public static boolean isSupported() {
+      try {
+         Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return true;
+      } catch (NoSuchMethodException ex) {
+         return false;
+      }
+   }
+
+   /**
+    * @return the number of live platform threads, the carrier threads of the
+    * virtual threads among them. Virtual threads are not counted.
+    */
+   public int getPlatformThreadCount() {
+      return ManagementFactory.getThreadMXBean().getThreadCount();
+   }
+
+   /**
+    * @return how often a virtual thread blocked longer than
+    * {@link #PINNED_THRESHOLD} while pinned to its carrier thread.
+    */
+   public long getPinnedCount() {
+      return pinned.get();
+   }
+
+   /**
+    * @return TRUE when pinned virtual threads were seen.
+    */
+   public boolean isPinned() {
+      return pinned.get() > 0;
+   }
+
+   @Override
+   public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      boolean result;
+
+      result = super.awaitTermination(timeout, unit);
+      Logger.getLogger(VirtualThreadTransport.class.getName()).log(Level.INFO,
+              "platform threads: " + getPlatformThreadCount() + ", pinned: " + getPinnedCount());
+      stopPinnedMonitor();
+
+      return result;
+   }
+
+   private synchronized void startPinnedMonitor() {
+      try {
+         recording = new RecordingStream();
+         recording.enable(PINNED_EVENT).withThreshold(PINNED_THRESHOLD).withStackTrace();
+         recording.onEvent(PINNED_EVENT, new Consumer<RecordedEvent>() {
+
+            public void accept(RecordedEvent event) {
+               pinned.incrementAndGet();
+               Logger.getLogger(VirtualThreadTransport.class.getName()).log(Level.WARNING,
+                       "virtual thread pinned for " + event.getDuration().toMillis() + "ms: " + event.getStackTrace());
+            }
+         });
+         recording.startAsync();
+      } catch (RuntimeException ex) {
+         Logger.getLogger(VirtualThreadTransport.class.getName()).log(Level.WARNING,
+                 "Pinned virtual threads are not monitored: " + ex.getLocalizedMessage());
+         recording = null;
+      }
+   }
+
+   private synchronized void stopPinnedMonitor() {
+      if (recording != null) {
+         recording.close();
+         recording = null;
+      }
+   }
+
+   private static ExecutorService newVirtualThreadPerTaskExecutor() throws UnsupportedOperationException {
+      Method method;
+
+      try {
+         method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) method.invoke(null);
+      } catch (NoSuchMethodException ex) {
+         throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", ex);
+      } catch (IllegalAccessException ex) {
+         throw new UnsupportedOperationException(ex.getLocalizedMessage(), ex);
+      } catch (InvocationTargetException ex) {
+         throw new UnsupportedOperationException(ex.getCause().getLocalizedMessage(), ex.getCause());
+      }
+   }
+}
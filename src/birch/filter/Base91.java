@@ -0,0 +1,150 @@
+/*
+ * Base91.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import java.util.Arrays;
+
+/**
+ * The basE91 encoding of Joachim Henke with an alphabet which is safe in the
+ * text of an IRC message: '|' and '"' are replaced by '-' and '\''.
+ *
+ * 13 bits are written as two characters where Base64 needs about 17 bits for
+ * them, the encoded text is about 19% shorter than Base64.
+ *
+ * @author Beselius
+ */
+public final class Base91 {
+
+   private static final char[] alphabet = (
+           "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+           + "!#$%&()*+,./:;<=>?@[]^_`{-}~'").toCharArray();
+   private static final byte[] values = new byte[128];
+
+   static {
+      for (int i = 0; i < values.length; ++i) {
+         values[i] = -1;
+      }
+      for (int i = 0; i < alphabet.length; ++i) {
+         values[alphabet[i]] = (byte) i;
+      }
+   }
+
+   private Base91() {
+   }
+
+   public static String encode(byte[] bytes) {
+      StringBuilder result;
+
+      result = new StringBuilder(bytes.length * 16 / 13 + 2);
+      encode(bytes, bytes.length, result);
+
+      return result.toString();
+   }
+
+   /**
+    * Append the text of the first length bytes.
+    */
+   public static void encode(byte[] bytes, int length, StringBuilder result) {
+      int bits;
+      int count;
+      int value;
+
+      bits = 0;
+      count = 0;
+      for (int i = 0; i < length; ++i) {
+         bits |= (bytes[i] & 0xff) << count;
+         count += 8;
+         if (count > 13) {
+            value = bits & 8191;
+            if (value > 88) {
+               bits >>= 13;
+               count -= 13;
+            } else {
+               value = bits & 16383;
+               bits >>= 14;
+               count -= 14;
+            }
+            result.append(alphabet[value % 91]);
+            result.append(alphabet[value / 91]);
+         }
+      }
+      if (count > 0) {
+         result.append(alphabet[bits % 91]);
+         if (count > 7 || bits > 90) {
+            result.append(alphabet[bits / 91]);
+         }
+      }
+   }
+
+   /**
+    * Characters outside the alphabet are skipped.
+    */
+   public static byte[] decode(String text) {
+      byte[] result;
+
+      result = new byte[text.length()];
+      return Arrays.copyOf(result, decode(text, 0, text.length(), result));
+   }
+
+   /**
+    * Decode the text between start and end.
+    * @param result has room for end - start bytes.
+    * @return the number of bytes decoded into the result.
+    */
+   public static int decode(CharSequence text, int start, int end, byte[] result) {
+      int length;
+      int bits;
+      int count;
+      int value;
+      int digit;
+      char c;
+
+      length = 0;
+      bits = 0;
+      count = 0;
+      value = -1;
+      for (int i = start; i < end; ++i) {
+         c = text.charAt(i);
+         digit = c < values.length ? values[c] : -1;
+         if (digit < 0) {
+            continue;
+         }
+         if (value < 0) {
+            value = digit;
+         } else {
+            value += digit * 91;
+            bits |= value << count;
+            count += (value & 8191) > 88 ? 13 : 14;
+            do {
+               result[length++] = (byte) bits;
+               bits >>= 8;
+               count -= 8;
+            } while (count > 7);
+            value = -1;
+         }
+      }
+      if (value >= 0) {
+         result[length++] = (byte) (bits | value << count);
+      }
+
+      return length;
+   }
+}
@@ -21,14 +21,40 @@
 package birch.filter;
 
 import birch.AbstractFilter;
+import birch.BatchFilter;
+import birch.CloseableFilter;
 import birch.Filter;
+import birch.IrcMessage;
+import birch.LineFilter;
+import birch.LineSink;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.*;
 import java.util.regex.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
@@ -44,7 +70,7 @@ import org.apache.commons.codec.binary.Base64;
  *
  * @author Beselius
  */
-public class EncryptionFilter extends AbstractFilter {
+public class EncryptionFilter extends AbstractFilter implements BatchFilter, CloseableFilter {
 
    public static interface Config {
 
@@ -183,45 +209,359 @@ public class EncryptionFilter extends AbstractFilter {
       }
    }
 
-   private static class EncryptedMessage {
+   /**
+    * The arrays a thread encrypts and decrypts messages in. They are kept and
+    * grown as needed, so that a message needs no arrays of its own.
+    */
+   private static class Buffers {
+
+      private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>();
+
+      private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+              .onMalformedInput(CodingErrorAction.REPLACE)
+              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      private final StringBuilder line = new StringBuilder(512);
+      private final byte[] nonce = new byte[NONCE_LENGTH];
+
+      private char[] chars = new char[256];
+      private CharBuffer charBuffer = CharBuffer.wrap(chars);
+      private byte[] text = new byte[256];
+      private ByteBuffer textBuffer = ByteBuffer.wrap(text);
+      private byte[] packed = new byte[256];
+      private ByteBuffer packedBuffer = ByteBuffer.wrap(packed);
+      private byte[] crypted = new byte[512];
+      private byte[] iv = new byte[16];
+
+      public static Buffers get() {
+         Buffers result;
+
+         result = buffers.get();
+         if (result == null) {
+            result = new Buffers();
+            buffers.set(result);
+         }
 
-      private String iv;
-      private String text;
+         return result;
+      }
 
-      public EncryptedMessage(String iv, String text) {
-         this.iv = iv;
-         this.text = text;
+      /**
+       * @return the line of the thread, emptied.
+       */
+      public StringBuilder getLine() {
+         line.setLength(0);
+         return line;
       }
 
-      public String getIv() {
-         return iv;
+      /**
+       * Encode the characters between start and end into {@link #getText(int)}
+       * like {@link String#getBytes()} does.
+       * @return the number of bytes.
+       */
+      public int encode(String string, int start, int end) {
+         int length;
+
+         length = end - start;
+         if (chars.length < length) {
+            chars = new char[Math.max(length, 2 * chars.length)];
+            charBuffer = CharBuffer.wrap(chars);
+         }
+         string.getChars(start, end, chars, 0);
+         charBuffer.clear();
+         charBuffer.limit(length);
+
+         getText((int) (length * encoder.maxBytesPerChar()) + 1);
+         textBuffer.clear();
+         encoder.reset();
+         encoder.encode(charBuffer, textBuffer, true);
+         encoder.flush(textBuffer);
+
+         return textBuffer.position();
       }
 
-      public String getText() {
+      /**
+       * Decode the first length bytes of {@link #getText(int)} like
+       * {@link String#String(byte[], int, int)} does and append them.
+       */
+      public void decodeText(int length, StringBuilder result) {
+         decode(textBuffer, length, result);
+      }
+
+      /**
+       * Decode the first length bytes of {@link #getPacked(int)}.
+       */
+      public void decodePacked(int length, StringBuilder result) {
+         decode(packedBuffer, length, result);
+      }
+
+      private void decode(ByteBuffer bytes, int length, StringBuilder result) {
+         int capacity;
+
+         capacity = (int) (length * decoder.maxCharsPerByte()) + 1;
+         if (chars.length < capacity) {
+            chars = new char[Math.max(capacity, 2 * chars.length)];
+            charBuffer = CharBuffer.wrap(chars);
+         }
+         charBuffer.clear();
+         bytes.clear();
+         bytes.limit(length);
+         decoder.reset();
+         decoder.decode(bytes, charBuffer, true);
+         decoder.flush(charBuffer);
+
+         result.append(chars, 0, charBuffer.position());
+      }
+
+      public byte[] getText(int capacity) {
+         if (text.length < capacity) {
+            text = grow(text, capacity);
+            textBuffer = ByteBuffer.wrap(text);
+         }
          return text;
       }
 
-      @Override
-      public String toString() {
-         return MessageFormat.format("{0}|{1}", iv, text);
+      public byte[] getPacked(int capacity) {
+         if (packed.length < capacity) {
+            packed = grow(packed, capacity);
+            packedBuffer = ByteBuffer.wrap(packed);
+         }
+         return packed;
+      }
+
+      public byte[] getCrypted(int capacity) {
+         crypted = grow(crypted, capacity);
+         return crypted;
+      }
+
+      public byte[] getIv(int capacity) {
+         iv = grow(iv, capacity);
+         return iv;
+      }
+
+      public byte[] getNonce() {
+         return nonce;
+      }
+
+      /**
+       * @return the array or a larger copy of it.
+       */
+      private static byte[] grow(byte[] array, int capacity) {
+         return array.length >= capacity ? array : Arrays.copyOf(array, Math.max(capacity, 2 * array.length));
+      }
+   }
+
+   /**
+    * Random IVs and nonces. They are drawn a block at a time from a few DRBGs
+    * seeded from the system source, two for every processor. The threads are
+    * given them in turn and keep theirs, so threads encrypting at once rarely
+    * wait for each other.
+    */
+   static class IvSource {
+
+      /** Bytes drawn at once. */
+      public static final int BLOCK_SIZE = 1024;
+
+      private static final IvSource[] sources = new IvSource[
+              Integer.highestOneBit(2 * Runtime.getRuntime().availableProcessors() - 1) * 2];
+      private static final AtomicInteger nextSource = new AtomicInteger();
+      private static final ThreadLocal<IvSource> threadSource = new ThreadLocal<IvSource>() {
+
+         @Override
+         protected IvSource initialValue() {
+            return sources[nextSource.getAndIncrement() & (sources.length - 1)];
+         }
+      };
+
+      static {
+         for (int i = 0; i < sources.length; ++i) {
+            sources[i] = new IvSource();
+         }
+      }
+
+      private final SecureRandom random;
+      private final byte[] block = new byte[BLOCK_SIZE];
+      private int position = BLOCK_SIZE;
+
+      private IvSource() {
+         SecureRandom drbg;
+
+         try {
+            drbg = SecureRandom.getInstance("DRBG");
+         } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.FINE, ex.getLocalizedMessage());
+            drbg = new SecureRandom();
+         }
+         random = drbg;
+      }
+
+      /**
+       * @return the source of the current thread.
+       */
+      public static IvSource get() {
+         return threadSource.get();
+      }
+
+      /**
+       * Fill the first length bytes of the IV, length is at most
+       * {@link #BLOCK_SIZE}.
+       */
+      public synchronized void next(byte[] iv, int length) {
+         if (BLOCK_SIZE - position < length) {
+            random.nextBytes(block);
+            position = 0;
+         }
+         System.arraycopy(block, position, iv, 0, length);
+         position += length;
+      }
+   }
+
+   /**
+    * Turns encrypted bytes into text and back.
+    */
+   private static interface Codec {
+
+      /**
+       * Append the text of the first length bytes.
+       */
+      public void encode(byte[] bytes, int length, StringBuilder result);
+
+      /**
+       * @param result has room for end - start bytes.
+       * @return the number of bytes decoded into the result.
+       */
+      public int decode(CharSequence text, int start, int end, byte[] result);
+   }
+
+   /**
+    * Base64 like commons-codec writes and reads it, but on parts of arrays
+    * and strings.
+    */
+   private static class Base64Codec implements Codec {
+
+      private static final char[] alphabet =
+              "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+      private static final byte[] values = new byte[128];
+
+      static {
+         Arrays.fill(values, (byte) -1);
+         for (int i = 0; i < alphabet.length; ++i) {
+            values[alphabet[i]] = (byte) i;
+         }
+      }
+
+      public void encode(byte[] bytes, int length, StringBuilder result) {
+         int bits;
+         int i;
+
+         for (i = 0; i + 2 < length; i += 3) {
+            bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            result.append(alphabet[bits >> 18]).append(alphabet[bits >> 12 & 63])
+                  .append(alphabet[bits >> 6 & 63]).append(alphabet[bits & 63]);
+         }
+         if (length - i == 1) {
+            bits = (bytes[i] & 0xff) << 16;
+            result.append(alphabet[bits >> 18]).append(alphabet[bits >> 12 & 63]).append("==");
+         } else if (length - i == 2) {
+            bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+            result.append(alphabet[bits >> 18]).append(alphabet[bits >> 12 & 63])
+                  .append(alphabet[bits >> 6 & 63]).append('=');
+         }
+      }
+
+      /**
+       * Characters outside the alphabet are skipped.
+       */
+      public int decode(CharSequence text, int start, int end, byte[] result) {
+         int bits;
+         int count;
+         int digit;
+         int length;
+         char c;
+
+         bits = 0;
+         count = 0;
+         length = 0;
+         for (int i = start; i < end; ++i) {
+            c = text.charAt(i);
+            digit = c < values.length ? values[c] : -1;
+            if (digit >= 0) {
+               bits = (bits << 6 | digit) & 0x3fff;
+               count += 6;
+               if (count >= 8) {
+                  count -= 8;
+                  result[length++] = (byte) (bits >> count);
+               }
+            }
+         }
+
+         return length;
+      }
+   }
+
+   private static class Base91Codec implements Codec {
+
+      public void encode(byte[] bytes, int length, StringBuilder result) {
+         Base91.encode(bytes, length, result);
+      }
+
+      public int decode(CharSequence text, int start, int end, byte[] result) {
+         return Base91.decode(text, start, end, result);
       }
    }
 
    private static interface Encryptor {
 
-      public EncryptedMessage encrypt(String message)
+      /**
+       * Append the first length bytes of the message encrypted as "iv|text".
+       */
+      public void encrypt(byte[] message, int length, StringBuilder result)
+              throws GeneralSecurityException;
+
+      /**
+       * Decrypt "iv|text" between start and end of the text.
+       * @param result has room for end - start bytes.
+       * @return the number of bytes decrypted into the result.
+       */
+      public int decrypt(CharSequence text, int start, int end, byte[] result)
+              throws GeneralSecurityException;
+
+      /**
+       * @return TRUE when the cipher of the key has an authenticated mode,
+       * else {@link #seal} and {@link #open} fail.
+       */
+      public boolean canSeal();
+
+      /**
+       * Encrypt and authenticate the message for the {@link #PREFIX2} and
+       * {@link #PREFIX3} formats, and append nonce and encrypted text as one
+       * field.
+       * @throws NoSuchAlgorithmException when the cipher of the key has no
+       * authenticated mode.
+       */
+      public void seal(byte[] message, int length, Codec codec, StringBuilder result)
               throws GeneralSecurityException;
 
-      public String decrypt(String iv, String message)
+      public int open(CharSequence text, int start, int end, Codec codec, byte[] result)
               throws GeneralSecurityException;
    }
 
    private static class DefaultEncryptor implements Encryptor {
 
       private Key key = null;
+      /**
+       * Looking up a cipher is expensive, so every thread keeps its own
+       * and only initializes it again for each message.
+       */
+      private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+      private final ThreadLocal<Cipher> sealCiphers = new ThreadLocal<Cipher>();
+      /** Whether the cipher has an authenticated mode, looked up once. */
+      private final boolean sealSupported;
 
       public DefaultEncryptor(Key key) {
          this.key = key;
+         this.sealSupported = isSealSupported(key.getAlgorithm());
       }
 
       public DefaultEncryptor(String key)
@@ -240,32 +580,149 @@ public class EncryptionFilter extends AbstractFilter {
               throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
               IOException {
          this.key = new SecretKeySpec(key, cipher);
+         this.sealSupported = isSealSupported(cipher);
+      }
+
+      /**
+       * @return TRUE when the algorithm has an authenticated mode.
+       */
+      public static boolean isSealSupported(String algorithm) {
+         try {
+            Cipher.getInstance(algorithm + SEAL_CIPHER_MODE);
+            return true;
+         } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.FINE,
+                    "No authenticated mode for " + algorithm + ", sent as " + PREFIX);
+         } catch (NoSuchPaddingException ex) {
+            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.FINE, ex.getLocalizedMessage());
+         }
+         return false;
+      }
+
+      public boolean canSeal() {
+         return sealSupported;
       }
 
-      public EncryptedMessage encrypt(String message)
+      public void encrypt(byte[] message, int length, StringBuilder result)
               throws GeneralSecurityException {
          Cipher cipher;
-         EncryptedMessage result;
+         Buffers buffers;
+         byte[] iv;
+         byte[] crypted;
+         int ivLength;
+
+         buffers = Buffers.get();
+         cipher = getCipher();
+         ivLength = cipher.getBlockSize();
+         iv = buffers.getIv(ivLength);
+         IvSource.get().next(iv, ivLength);
+         cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv, 0, ivLength));
+         crypted = buffers.getCrypted(cipher.getOutputSize(length));
+         length = cipher.doFinal(message, 0, length, crypted, 0);
+
+         base64.encode(iv, ivLength, result);
+         result.append('|');
+         base64.encode(crypted, length, result);
+      }
 
-         cipher = Cipher.getInstance(key.getAlgorithm() + DEFAULT_CIPHER_MODE);
-         cipher.init(Cipher.ENCRYPT_MODE, key);
+      public int decrypt(CharSequence text, int start, int end, byte[] result)
+              throws GeneralSecurityException {
+         int separator;
 
-         result = new EncryptedMessage(
-                        new String(Base64.encodeBase64(cipher.getIV())),
-                        new String(Base64.encodeBase64(cipher.doFinal(message.getBytes())))
-                      );
+         separator = indexOf(text, '|', start, end);
+         if (separator < 0) {
+            throw new GeneralSecurityException("No IV.");
+         }
 
-         return result;
+         return decrypt(text, start, separator, separator + 1, end, result);
+      }
+
+      /**
+       * Decrypt the text between start and end with the IV between ivStart
+       * and ivEnd.
+       */
+      public int decrypt(CharSequence text, int ivStart, int ivEnd, int start, int end, byte[] result)
+              throws GeneralSecurityException {
+         Cipher cipher;
+         Buffers buffers;
+         byte[] iv;
+         byte[] crypted;
+         int ivLength;
+         int length;
+
+         buffers = Buffers.get();
+         iv = buffers.getIv(ivEnd - ivStart);
+         ivLength = base64.decode(text, ivStart, ivEnd, iv);
+         crypted = buffers.getCrypted(end - start);
+         length = base64.decode(text, start, end, crypted);
+
+         cipher = getCipher();
+         cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv, 0, ivLength));
+
+         return cipher.doFinal(crypted, 0, length, result, 0);
       }
 
-      public String decrypt(String iv, String message)
+      public void seal(byte[] message, int length, Codec codec, StringBuilder result)
               throws GeneralSecurityException {
          Cipher cipher;
-         String result;
+         Buffers buffers;
+         byte[] nonce;
+         byte[] crypted;
 
-         cipher = Cipher.getInstance(key.getAlgorithm() + DEFAULT_CIPHER_MODE);
-         cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(Base64.decodeBase64(iv.getBytes())));
-         result = new String(cipher.doFinal(Base64.decodeBase64(message.getBytes())));
+         buffers = Buffers.get();
+         nonce = buffers.getNonce();
+         IvSource.get().next(nonce, NONCE_LENGTH);
+
+         cipher = getSealCipher();
+         cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, nonce));
+         crypted = buffers.getCrypted(NONCE_LENGTH + cipher.getOutputSize(length));
+         System.arraycopy(nonce, 0, crypted, 0, NONCE_LENGTH);
+         length = cipher.doFinal(message, 0, length, crypted, NONCE_LENGTH);
+
+         codec.encode(crypted, NONCE_LENGTH + length, result);
+      }
+
+      public int open(CharSequence text, int start, int end, Codec codec, byte[] result)
+              throws GeneralSecurityException {
+         Cipher cipher;
+         byte[] sealed;
+         int length;
+
+         sealed = Buffers.get().getCrypted(end - start);
+         length = codec.decode(text, start, end, sealed);
+         if (length < NONCE_LENGTH) {
+            throw new GeneralSecurityException("Message too short.");
+         }
+
+         cipher = getSealCipher();
+         cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, sealed, 0, NONCE_LENGTH));
+
+         return cipher.doFinal(sealed, NONCE_LENGTH, length - NONCE_LENGTH, result, 0);
+      }
+
+      private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+         Cipher result;
+
+         result = ciphers.get();
+         if (result == null) {
+            result = Cipher.getInstance(key.getAlgorithm() + DEFAULT_CIPHER_MODE);
+            ciphers.set(result);
+         }
+
+         return result;
+      }
+
+      private Cipher getSealCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+         Cipher result;
+
+         if (!sealSupported) {
+            throw new NoSuchAlgorithmException("No authenticated mode for " + key.getAlgorithm() + ".");
+         }
+         result = sealCiphers.get();
+         if (result == null) {
+            result = Cipher.getInstance(key.getAlgorithm() + SEAL_CIPHER_MODE);
+            sealCiphers.set(result);
+         }
 
          return result;
       }
@@ -276,7 +733,7 @@ public class EncryptionFilter extends AbstractFilter {
       }
    }
 
-   private static class OTPEncryptor implements Encryptor {
+   static class OTPEncryptor implements Encryptor {
 
       public static class Time {
 
@@ -343,22 +800,52 @@ public class EncryptionFilter extends AbstractFilter {
          }
       }
 
+      /** Number of intervals whose encryptors are kept. */
+      public static final int CACHE_SIZE = 16;
+
       private File file;
       private String algorithm;
+      private boolean sealSupported;
       private int keysize;
       private Date start;
       private Time interval;
       private int bytesToSkip;
 
+      /** Milliseconds, 0 when the length depends on the calendar. */
+      private long intervalLength;
+      /** The last interval walked to which started before the time asked for. */
+      private int cursorInterval;
+      private long cursorTime;
+      private Calendar calendar;
+
+      private ByteBuffer pad;
+      private final Map<Integer, DefaultEncryptor> encryptors =
+              new LinkedHashMap<Integer, DefaultEncryptor>(CACHE_SIZE, 0.75f, true) {
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<Integer, DefaultEncryptor> eldest) {
+            return size() > CACHE_SIZE;
+         }
+      };
+
       public OTPEncryptor(File file, String algorithm, int keysize, Date start, Time interval, int bytesToSkip)
               throws FileNotFoundException, IOException {
          this.file = file;
          this.algorithm = algorithm;
+         this.sealSupported = DefaultEncryptor.isSealSupported(algorithm);
          this.keysize = keysize;
          this.start = start;
          this.interval = interval;
          this.bytesToSkip = bytesToSkip;
 
+         // months and days follow the calendar, e.g. daylight saving time
+         if (interval.getMonths() == 0 && interval.getDays() == 0) {
+            intervalLength = 1000L * (3600L * interval.getHours() + 60L * interval.getMinutes() + interval.getSeconds());
+         }
+         cursorInterval = 0;
+         cursorTime = start.getTime();
+         calendar = Calendar.getInstance();
+
          if ( !file.isFile() ) {
             throw new FileNotFoundException(file.getAbsolutePath());
          }
@@ -367,89 +854,213 @@ public class EncryptionFilter extends AbstractFilter {
          }
       }
 
-      private int getInterval(Date time) {
-         int result = 0;
-         Calendar calendar;
-         Date marker;
+      /**
+       * @return the number of intervals from the start to the first interval
+       * starting at or after the time.
+       */
+      int getInterval(Date time) {
+         long distance;
 
-         if (!start.equals(time)) {
-            calendar = Calendar.getInstance();
-            if (start.before(time)) {
-               calendar.setTime(start);
-               marker = time;
-            } else {
-               calendar.setTime(time);
-               marker = start;
-            }
-            while (calendar.getTime().before(marker)) {
-               calendar.add(Calendar.MONTH, interval.getMonths());
-               calendar.add(Calendar.DAY_OF_MONTH, interval.getDays());
-               calendar.add(Calendar.HOUR, interval.getHours());
-               calendar.add(Calendar.MINUTE, interval.getMinutes());
-               calendar.add(Calendar.SECOND, interval.getSeconds());
+         if (start.equals(time) || interval.isZero()) {
+            return 0;
+         }
+
+         if (intervalLength > 0) {
+            distance = Math.abs(time.getTime() - start.getTime());
+            return (int) ((distance + intervalLength - 1) / intervalLength);
+         }
+
+         if (start.before(time)) {
+            return walk(time.getTime());
+         } else {
+            long next;
+            int result;
+
+            result = 0;
+            next = time.getTime();
+            while (next < start.getTime()) {
+               next = step(next);
                ++result;
             }
+            return result;
          }
+      }
 
-         return result;
+      /**
+       * Walk the calendar on from the interval of the last call, the times
+       * asked for mostly grow slowly.
+       */
+      private int walk(long time) {
+         long next;
+
+         if (cursorTime >= time) {
+            cursorInterval = 0;
+            cursorTime = start.getTime();
+         }
+
+         next = step(cursorTime);
+         while (next < time) {
+            cursorTime = next;
+            ++cursorInterval;
+            next = step(cursorTime);
+         }
+
+         return cursorInterval + 1;
       }
 
-      private int lastInterval;
-      private byte[] lastKey;
-      private byte[] getKey(Date time) throws FileNotFoundException, IOException {
-         byte[] result;
-         int currentInterval;
-         DataInputStream input;
+      /**
+       * @return the start of the interval after the one starting at the time.
+       */
+      private long step(long time) {
+         calendar.setTimeInMillis(time);
+         calendar.add(Calendar.MONTH, interval.getMonths());
+         calendar.add(Calendar.DAY_OF_MONTH, interval.getDays());
+         calendar.add(Calendar.HOUR, interval.getHours());
+         calendar.add(Calendar.MINUTE, interval.getMinutes());
+         calendar.add(Calendar.SECOND, interval.getSeconds());
+
+         return calendar.getTimeInMillis();
+      }
 
-         result = new byte[keysize];
+      /**
+       * Map the pad on first use, the pages are read by the operating system
+       * when a key is taken from them.
+       */
+      private synchronized ByteBuffer getPad() throws IOException {
+         RandomAccessFile input;
 
-         currentInterval = getInterval(time);
-         if (currentInterval != lastInterval) {
-            input = new DataInputStream(new FileInputStream(file));
-            input.skipBytes(currentInterval * bytesToSkip);
-            if (input.read(result) == -1) {
+         if (pad == null) {
+            input = new RandomAccessFile(file, "r");
+            try {
+               pad = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                       Math.min(input.length(), Integer.MAX_VALUE));
+            } finally {
                input.close();
-               throw new IOException("End of file reached. Not enuogh bytes to create a key.");
             }
-            input.close();
+         }
 
-            lastInterval = currentInterval;
-            lastKey = result;
-         } else {
-            result = lastKey;
+         return pad;
+      }
+
+      private byte[] getKey(int interval) throws IOException {
+         byte[] result;
+         ByteBuffer keys;
+         long position;
+
+         keys = getPad().duplicate();
+         position = (long) interval * bytesToSkip;
+         if (position + keysize > keys.limit()) {
+            throw new IOException("End of file reached. Not enuogh bytes to create a key.");
          }
 
+         result = new byte[keysize];
+         keys.position((int) position);
+         keys.get(result);
+
          return result;
       }
 
-      private Encryptor getEncryptor(Date time)
+      /**
+       * @return the encryptor of the interval, the one of the next interval is
+       * created with it so that it is ready when the interval ends.
+       */
+      private DefaultEncryptor getEncryptor(Date time)
               throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
-         return new DefaultEncryptor(getKey(time), algorithm);
+         DefaultEncryptor result;
+         int currentInterval;
+
+         synchronized (encryptors) {
+            currentInterval = getInterval(time);
+            result = encryptors.get(currentInterval);
+            if (result == null) {
+               result = new DefaultEncryptor(getKey(currentInterval), algorithm);
+               encryptors.put(currentInterval, result);
+               if (!encryptors.containsKey(currentInterval + 1)) {
+                  try {
+                     encryptors.put(currentInterval + 1,
+                             new DefaultEncryptor(getKey(currentInterval + 1), algorithm));
+                  } catch (IOException ex) {
+                     Logger.getLogger(EncryptionFilter.class.getName()).log(Level.FINE, ex.getLocalizedMessage());
+                  }
+               }
+            }
+         }
+
+         return result;
       }
 
-      public EncryptedMessage encrypt(String message) throws GeneralSecurityException {
+      /**
+       * Append "iv|time:text", the time selects the key.
+       */
+      public void encrypt(byte[] message, int length, StringBuilder result) throws GeneralSecurityException {
          Date time;
-         Encryptor encryptor;
-         EncryptedMessage encryptedMessage;
+         int start;
 
          try {
 
             time = new Date();
-            encryptor = getEncryptor(time);
-            encryptedMessage = encryptor.encrypt(message);
-            return new EncryptedMessage(encryptedMessage.getIv(), time.getTime() + ":" + encryptedMessage.getText());
+            start = result.length();
+            getEncryptor(time).encrypt(message, length, result);
+            start = indexOf(result, '|', start, result.length()) + 1;
+            result.insert(start, ':').insert(start, time.getTime());
 
          } catch (IOException ex) {
             throw new GeneralSecurityException(ex);
          }
       }
 
-      public String decrypt(String iv, String message) throws GeneralSecurityException {
-         String[] parts;
+      public int decrypt(CharSequence text, int start, int end, byte[] result) throws GeneralSecurityException {
+         int separator;
+         int timeEnd;
+
+         separator = indexOf(text, '|', start, end);
+         timeEnd = indexOf(text, ':', separator + 1, end);
+         if (separator < 0 || timeEnd < 0) {
+            throw new GeneralSecurityException("No IV or time.");
+         }
+
+         return getEncryptor(text, separator + 1, timeEnd)
+                   .decrypt(text, start, separator, timeEnd + 1, end, result);
+      }
+
+      public boolean canSeal() {
+         return sealSupported;
+      }
+
+      public void seal(byte[] message, int length, Codec codec, StringBuilder result)
+              throws GeneralSecurityException {
+         Date time;
 
          try {
-            parts = message.split(":", 2);
-            return getEncryptor(new Date(Long.parseLong(parts[0]))).decrypt(iv, parts[1]);
+            time = new Date();
+            result.append(time.getTime()).append(':');
+            getEncryptor(time).seal(message, length, codec, result);
+         } catch (IOException ex) {
+            throw new GeneralSecurityException(ex);
+         }
+      }
+
+      public int open(CharSequence text, int start, int end, Codec codec, byte[] result)
+              throws GeneralSecurityException {
+         int timeEnd;
+
+         timeEnd = indexOf(text, ':', start, end);
+         if (timeEnd < 0) {
+            throw new GeneralSecurityException("No time.");
+         }
+
+         return getEncryptor(text, start, timeEnd).open(text, timeEnd + 1, end, codec, result);
+      }
+
+      /**
+       * @return the encryptor for the time written between start and end.
+       */
+      private DefaultEncryptor getEncryptor(CharSequence text, int start, int end)
+              throws GeneralSecurityException {
+         try {
+            return getEncryptor(new Date(Long.parseLong(text, start, end, 10)));
+         } catch (NumberFormatException ex) {
+            throw new GeneralSecurityException(ex);
          } catch (IOException ex) {
             throw new GeneralSecurityException(ex);
          }
@@ -461,6 +1072,507 @@ public class EncryptionFilter extends AbstractFilter {
       }
    }
 
+   /**
+    * Finds the encryptor for a channel or nick. Targets without regular
+    * expression characters are looked up by name, the others are combined
+    * into one pattern. The results are cached.
+    */
+   private static class TargetIndex {
+
+      private static final Pattern metaCharacters = Pattern.compile("[\\\\\\[\\]{}()*+?.^$|]");
+      private static final int MAX_CACHE_SIZE = 4096;
+      /** Cached for targets without encryptor. */
+      private static final Encryptor none = new Encryptor() {
+
+         public void encrypt(byte[] message, int length, StringBuilder result)
+                 throws GeneralSecurityException {
+            throw new GeneralSecurityException("No encryptor.");
+         }
+
+         public int decrypt(CharSequence text, int start, int end, byte[] result)
+                 throws GeneralSecurityException {
+            throw new GeneralSecurityException("No encryptor.");
+         }
+
+         public boolean canSeal() {
+            return false;
+         }
+
+         public void seal(byte[] message, int length, Codec codec, StringBuilder result)
+                 throws GeneralSecurityException {
+            throw new GeneralSecurityException("No encryptor.");
+         }
+
+         public int open(CharSequence text, int start, int end, Codec codec, byte[] result)
+                 throws GeneralSecurityException {
+            throw new GeneralSecurityException("No encryptor.");
+         }
+      };
+
+      private final Map<String, Encryptor> exact;
+      private final Pattern patterns;
+      /** The encryptor of each pattern by the number of its group. */
+      private final Encryptor[] groups;
+      /** Patterns which cannot be combined, matched one by one. */
+      private final Map<Pattern, Encryptor> separate;
+      private final ConcurrentMap<String, Encryptor> resolved;
+
+      public TargetIndex(Map<String, Encryptor> targets) {
+         StringBuilder combined;
+         List<Encryptor> groupList;
+         Pattern pattern;
+         int groupCount;
+
+         exact = new HashMap<String, Encryptor>();
+         separate = new LinkedHashMap<Pattern, Encryptor>();
+         combined = new StringBuilder();
+         groupList = new ArrayList<Encryptor>();
+         groupList.add(null);
+         for (Map.Entry<String, Encryptor> entry : targets.entrySet()) {
+            if (!metaCharacters.matcher(entry.getKey()).find()) {
+               exact.put(entry.getKey(), entry.getValue());
+               continue;
+            }
+            try {
+               pattern = Pattern.compile(entry.getKey());
+            } catch (PatternSyntaxException ex) {
+               Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING,
+                       "Target ''{0}'' is no regular expression, compared literally.", entry.getKey());
+               exact.put(entry.getKey(), entry.getValue());
+               continue;
+            }
+            if (refersToGroups(entry.getKey())) {
+               separate.put(pattern, entry.getValue());
+               continue;
+            }
+            groupCount = pattern.matcher("").groupCount();
+            if (combined.length() > 0) {
+               combined.append('|');
+            }
+            combined.append('(').append(entry.getKey()).append(')');
+            groupList.add(entry.getValue());
+            for (int i = 0; i < groupCount; ++i) {
+               groupList.add(null);
+            }
+         }
+
+         patterns = combined.length() == 0 ? null : Pattern.compile(combined.toString());
+         groups = groupList.toArray(new Encryptor[groupList.size()]);
+         resolved = new ConcurrentHashMap<String, Encryptor>();
+      }
+
+      /**
+       * @return the encryptor for the target or null.
+       */
+      public Encryptor get(String target) {
+         Encryptor result;
+
+         result = resolved.get(target);
+         if (result == null) {
+            result = resolve(target);
+            if (resolved.size() >= MAX_CACHE_SIZE) {
+               resolved.clear();
+            }
+            resolved.put(target, result == null ? none : result);
+         } else if (result == none) {
+            result = null;
+         }
+
+         return result;
+      }
+
+      /**
+       * A pattern with backreferences or named groups cannot be part of the
+       * combined pattern: its groups are numbered anew there, and a name may
+       * be used by several patterns.
+       */
+      private static boolean refersToGroups(String regex) {
+         char c;
+
+         for (int i = 0; i < regex.length() - 1; ++i) {
+            c = regex.charAt(i);
+            if (c == '\\') {
+               c = regex.charAt(++i);
+               if (c >= '1' && c <= '9' || c == 'k') {
+                  return true;
+               }
+            } else if (c == '(' && regex.startsWith("?<", i + 1) && i + 3 < regex.length()
+                    && Character.isLetter(regex.charAt(i + 3))) {
+               return true;
+            }
+         }
+
+         return false;
+      }
+
+      private Encryptor resolve(String target) {
+         Encryptor result;
+         Matcher matcher;
+
+         result = exact.get(target);
+         if (result == null && patterns != null) {
+            matcher = patterns.matcher(target);
+            if (matcher.matches()) {
+               for (int i = 1; i < groups.length; ++i) {
+                  if (groups[i] != null && matcher.start(i) >= 0) {
+                     result = groups[i];
+                     break;
+                  }
+               }
+            }
+         }
+         if (result == null) {
+            for (Map.Entry<Pattern, Encryptor> entry : separate.entrySet()) {
+               if (entry.getKey().matcher(target).matches()) {
+                  result = entry.getValue();
+                  break;
+               }
+            }
+         }
+
+         return result;
+      }
+   }
+
+   /**
+    * Everything the filter reads from its configuration. It is never changed
+    * once built, so the filters of all connections can share it.
+    */
+   private static class Keys {
+
+      private final Pattern activeEncryptedPattern;
+
+      private final String encryptedPrefix;
+      private final String plainPrefix;
+      private final String ignorePrefix;
+      /** The format messages are sent in. */
+      private final int version;
+      private final boolean compress;
+
+      /** Map of target to Enryptor. */
+      private final Map<String, Encryptor> targets;
+      /** Map of key to target. */
+      private final Map<String, String> keyToTarget;
+      private final TargetIndex targetIndex;
+
+      public Keys(Config config) {
+         List<KeyParser> keyParsers;
+
+         this.targets = new HashMap<String, Encryptor>();
+         this.keyToTarget = new HashMap<String, String>();
+
+         keyParsers = new ArrayList<KeyParser>();
+         keyParsers.add(new OTPKeyParser());
+         keyParsers.add(new ExtendedKeyParser());
+         keyParsers.add(new DefaultKeyParser());
+
+         encryptedPrefix = config.getProperties().get("prefixencrypted") == null
+                              ? ""
+                              : config.getProperties().get("prefixencrypted");
+         plainPrefix = config.getProperties().get("prefixplain") == null
+                              ? ""
+                              : config.getProperties().get("prefixplain");
+         ignorePrefix = config.getProperties().get("ignoreprefix") == null
+                              ? ""
+                              : config.getProperties().get("ignoreprefix");
+         if ("3".equals(config.getProperties().get("version"))) {
+            version = 3;
+         } else if ("2".equals(config.getProperties().get("version"))) {
+            version = 2;
+         } else {
+            version = 1;
+         }
+         compress = "true".equalsIgnoreCase(config.getProperties().get("compress"));
+
+         if ( ignorePrefix.matches(".*[^\\\\]*(\\\\\\\\)*$") ) {
+            activeEncryptedPattern = Pattern.compile(
+                    MessageFormat.format("(?:{0})?{1}", ignorePrefix, encryptedPattern.pattern()));
+         } else {
+            activeEncryptedPattern = encryptedPattern;
+         }
+
+         Logger logger = Logger.getLogger(EncryptionFilter.class.getName());
+         logger.finer("encryptedPrefix: " + encryptedPrefix);
+         logger.finer("plainPrefix: " + plainPrefix);
+         logger.finer("ignoreprefix: " + ignorePrefix);
+         logger.finer("version: " + version);
+         logger.finer("compress: " + compress);
+         logger.finer("activeEncryptedPattern: " + activeEncryptedPattern.pattern());
+
+         String key;
+         Encryptor encryptor;
+         Map<String, String> configTargets;
+         configTargets = config.getTargets();
+
+         for (String target : configTargets.keySet()) {
+            try {
+
+               key = configTargets.get(target);
+               if (key != null) {
+                  encryptor = getEncryptor(keyParsers, key);
+                  if (encryptor != null) {
+                     this.targets.put(target, encryptor);
+                     this.keyToTarget.put(key, target);
+                  }
+               }
+
+            } catch (GeneralSecurityException ex) {
+               Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+            } catch (IOException ex) {
+               Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+            }
+         }
+
+         targetIndex = new TargetIndex(this.targets);
+      }
+
+      private static Encryptor getEncryptor(List<KeyParser> keyParsers, String keyFromConfig)
+              throws GeneralSecurityException, IOException {
+         Encryptor result = null;
+
+         for (KeyParser keyParser : keyParsers) {
+            result = keyParser.getEncryptor(keyFromConfig);
+            if (result != null) {
+               break;
+            }
+         }
+
+         return result;
+      }
+   }
+
+   /**
+    * The keys of a configuration file, shared by all filters using the file.
+    * The file is read again when it changes and the new keys replace the old
+    * ones at once; a message being filtered keeps the keys it started with.
+    */
+   public static class KeyFile {
+
+      /** Milliseconds to wait after a change, the file may be written in parts. */
+      public static final int RELOAD_DELAY = 500;
+
+      private static final Map<File, KeyFile> instances = new HashMap<File, KeyFile>();
+
+      private final File file;
+      private final AtomicReference<Keys> keys;
+      private WatchService watcher;
+
+      private KeyFile(File file) throws FileNotFoundException {
+         this.file = file;
+         this.keys = new AtomicReference<Keys>(new Keys(new FileConfig(file.getPath())));
+
+         watch();
+      }
+
+      /**
+       * @return the keys of the file, read by the first call for the file.
+       */
+      public static synchronized KeyFile get(String filename) throws FileNotFoundException {
+         File file;
+         KeyFile result;
+
+         file = new File(filename).getAbsoluteFile().toPath().normalize().toFile();
+         result = instances.get(file);
+         if (result == null) {
+            result = new KeyFile(file);
+            instances.put(file, result);
+         }
+
+         return result;
+      }
+
+      /**
+       * Read the file again, the old keys are kept when it cannot be read.
+       */
+      public void reload() {
+         try {
+            keys.set(new Keys(new FileConfig(file.getPath())));
+            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.INFO, "Keys read from " + file);
+         } catch (FileNotFoundException ex) {
+            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING,
+                    "Keys not reloaded: " + ex.getLocalizedMessage());
+         }
+      }
+
+      private void watch() {
+         Thread thread;
+
+         try {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.getParentFile().toPath().register(watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+         } catch (IOException ex) {
+            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING,
+                    "Changes of " + file + " are not watched: " + ex.getLocalizedMessage());
+            return;
+         }
+
+         thread = new Thread(new Runnable() {
+
+            public void run() {
+               try {
+                  while (awaitChange()) {
+                     reload();
+                  }
+               } catch (InterruptedException ex) {
+                  Logger.getLogger(EncryptionFilter.class.getName()).log(Level.FINE, ex.getLocalizedMessage());
+               } catch (ClosedWatchServiceException ex) {
+                  Logger.getLogger(EncryptionFilter.class.getName()).log(Level.FINE, ex.getLocalizedMessage());
+               }
+            }
+         }, "birch-keys");
+         thread.setDaemon(true);
+         thread.start();
+      }
+
+      /**
+       * @return FALSE when the directory can no longer be watched.
+       */
+      private boolean awaitChange() throws InterruptedException {
+         WatchKey key;
+         boolean changed;
+
+         changed = false;
+         while (!changed) {
+            key = watcher.take();
+            for (WatchEvent<?> event : key.pollEvents()) {
+               if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                       || file.getName().equals(String.valueOf(event.context()))) {
+                  changed = true;
+               }
+            }
+            if (!key.reset()) {
+               return false;
+            }
+         }
+
+         Thread.sleep(RELOAD_DELAY);
+         while ((key = watcher.poll()) != null) {
+            key.pollEvents();
+            key.reset();
+         }
+
+         return true;
+      }
+   }
+
+   /**
+    * Deflates the text of a message before it is sealed. The deflater starts
+    * with a dictionary of words common in chats, so that even short messages
+    * get smaller. The dictionary is part of the message format, messages
+    * deflated with another one cannot be read.
+    *
+    * Every filter has its own deflater and inflater, they are ended when the
+    * filter is closed.
+    */
+   private static class Compression {
+
+      /** Bytes, shorter texts are hardly ever deflated below their length. */
+      public static final int MIN_LENGTH = 48;
+      /** Bytes, longer inflated texts are rejected. */
+      public static final int MAX_LENGTH = 65536;
+
+      private static final byte[] dictionary = (
+              "http://https://www.com/org/net/.html?id=:):D;)^^:-):(:P..."
+              + " because people something anything really actually probably already"
+              + " should would could there their they're about other again after"
+              + " before think thanks thank please sorry right today tomorrow tonight"
+              + " morning evening night time work home channel server nick message"
+              + " what's that's it's don't can't didn't doesn't isn't won't I'm you're"
+              + " how who when where why which with this that have from just like"
+              + " know good yeah yes no not but all one out get got was are and for"
+              + " the you to of in is it on me my so ok lol hi hey haha ").getBytes();
+
+      /** Guarded by this. */
+      private Deflater deflater;
+      /** Guarded by this. */
+      private Inflater inflater;
+      /** Guarded by this. */
+      private boolean ended;
+
+      /**
+       * Deflate the first length bytes into the result, which has room for
+       * length bytes.
+       * @return the number of bytes deflated or -1 when they would not be
+       * shorter or the compression is ended.
+       */
+      public synchronized int deflate(byte[] bytes, int length, byte[] result) {
+         int deflated;
+
+         if (length < MIN_LENGTH || ended) {
+            return -1;
+         }
+
+         if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+         }
+         deflater.reset();
+         deflater.setDictionary(dictionary);
+         deflater.setInput(bytes, 0, length);
+         deflater.finish();
+
+         deflated = deflater.deflate(result, 0, length - 1);
+         if (!deflater.finished()) {
+            return -1;
+         }
+
+         return deflated;
+      }
+
+      /**
+       * Inflate the first length bytes into the packed buffer.
+       * @return the number of bytes inflated.
+       */
+      public synchronized int inflate(byte[] bytes, int length, Buffers buffers) throws DataFormatException {
+         byte[] result;
+         int inflated;
+
+         if (ended) {
+            throw new DataFormatException("Filter closed.");
+         }
+
+         if (inflater == null) {
+            inflater = new Inflater(true);
+         }
+         inflater.reset();
+         inflater.setDictionary(dictionary);
+         inflater.setInput(bytes, 0, length);
+
+         result = buffers.getPacked(3 * length);
+         inflated = 0;
+         while (!inflater.finished()) {
+            if (inflated == result.length) {
+               if (inflated >= MAX_LENGTH) {
+                  throw new DataFormatException("Deflated message longer than " + MAX_LENGTH + " bytes.");
+               }
+               result = buffers.getPacked(inflated + 1);
+            }
+            length = inflater.inflate(result, inflated, result.length - inflated);
+            if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+               throw new DataFormatException("Deflated message incomplete.");
+            }
+            inflated += length;
+         }
+
+         return inflated;
+      }
+
+      /**
+       * Free the memory of the deflater and the inflater.
+       */
+      public synchronized void end() {
+         ended = true;
+         if (deflater != null) {
+            deflater.end();
+            deflater = null;
+         }
+         if (inflater != null) {
+            inflater.end();
+            inflater = null;
+         }
+      }
+   }
+
    private static interface KeyParser {
 
       /**
@@ -599,159 +1711,188 @@ public class EncryptionFilter extends AbstractFilter {
 
    public static final String DEFAULT_CIPHER = "AES";
    public static final String DEFAULT_CIPHER_MODE = "/CBC/ISO10126PADDING";
+   /** Authenticated mode of the {@link #PREFIX2} format. */
+   public static final String SEAL_CIPHER_MODE = "/GCM/NoPadding";
    public static final String PREFIX = "<birch>";
+   /**
+    * Second format: {@code <birch2>|nonce and encrypted text}, sent when the
+    * property "version" is 2. Both formats are always received.
+    */
+   public static final String PREFIX2 = "<birch2>";
+   /**
+    * Third format: like {@link #PREFIX2} but in {@link Base91}, sent when the
+    * property "version" is 3.
+    */
+   public static final String PREFIX3 = "<birch3>";
+   /**
+    * Header field in front of the data of the {@link #PREFIX2} and
+    * {@link #PREFIX3} formats: the text was deflated before it was sealed.
+    * Set when the property "compress" is true.
+    */
+   public static final String FLAG_DEFLATED = "z";
    public static final String DONT_ENCRYPT_PREFIX = "<plain>";
+   /** The only command the filter changes. */
+   public static final String[] COMMANDS = { "PRIVMSG" };
+   /** The commands its {@link LinebreakFilter} learns the line length from besides. */
+   public static final String[] RECEIVE_COMMANDS = LinebreakFilter.RECEIVE_COMMANDS;
 
-   private static final Pattern messagePattern = Pattern.compile("^:(\\S+) (PRIVMSG) (\\S+) :(.*)$");
-   private static final Pattern encryptedPattern = Pattern.compile("(" + PREFIX + "\\|\\S+\\|\\S+)");
-
-   private Pattern activeEncryptedPattern;
+   /** Bytes. */
+   private static final int NONCE_LENGTH = 12;
+   /** Bits. */
+   private static final int TAG_LENGTH = 128;
 
-   private String encryptedPrefix;
-   private String plainPrefix;
-   private String ignorePrefix;
+   private static final Pattern encryptedPattern = Pattern.compile(
+           "(" + PREFIX + "\\|\\S+\\|\\S+|" + PREFIX2 + "\\|\\S+|" + PREFIX3 + "\\|\\S+)");
 
-   /** Map of target to Enryptor. */
-   private Map<String, Encryptor> targets;
-   /** Map of key to target. */
-   private Map<String, String> keyToTarget;
+   private static final Codec base64 = new Base64Codec();
+   private static final Codec base91 = new Base91Codec();
 
-   private List<KeyParser> keyParsers;
-   private Filter linebreakFilter;
+   private final AtomicReference<Keys> keys;
+   private final Compression compression;
+   private LinebreakFilter linebreakFilter;
 
    public EncryptionFilter(Filter filter, Config config) {
+      this(filter, new AtomicReference<Keys>(new Keys(config)));
+   }
+
+   /**
+    * A filter using the keys shared by all filters of the key file.
+    */
+   public EncryptionFilter(Filter filter, KeyFile keyFile) {
+      this(filter, keyFile.keys);
+   }
+
+   private EncryptionFilter(Filter filter, AtomicReference<Keys> keys) {
       super(filter);
 
-      this.targets = new HashMap<String, Encryptor>();
-      this.keyToTarget = new HashMap<String, String>();
+      this.keys = keys;
+      compression = new Compression();
       linebreakFilter = new LinebreakFilter(Filter.nullObject);
+   }
 
-      keyParsers = new ArrayList();
-      keyParsers.add(new OTPKeyParser());
-      keyParsers.add(new ExtendedKeyParser());
-      keyParsers.add(new DefaultKeyParser());
-
-      encryptedPrefix = config.getProperties().get("prefixencrypted") == null
-                           ? ""
-                           : config.getProperties().get("prefixencrypted");
-      plainPrefix = config.getProperties().get("prefixplain") == null
-                           ? ""
-                           : config.getProperties().get("prefixplain");
-      ignorePrefix = config.getProperties().get("ignoreprefix") == null
-                           ? ""
-                           : config.getProperties().get("ignoreprefix");
-
-      if ( ignorePrefix.matches(".*[^\\\\]*(\\\\\\\\)*$") ) {
-         activeEncryptedPattern = Pattern.compile(
-                 MessageFormat.format("(?:{0})?{1}", ignorePrefix, encryptedPattern.pattern()));
-      } else {
-         activeEncryptedPattern = encryptedPattern;
-      }
-
-      Logger logger = Logger.getLogger(EncryptionFilter.class.getName());
-      logger.finer("encryptedPrefix: " + encryptedPrefix);
-      logger.finer("plainPrefix: " + plainPrefix);
-      logger.finer("ignoreprefix: " + ignorePrefix);
-      logger.finer("activeEncryptedPattern: " + activeEncryptedPattern.pattern());
+   /**
+    * End the compression of the filter.
+    */
+   public void close() {
+      compression.end();
+   }
 
-      String key;
+   /**
+    * Hand the lines of an encrypted message to the sink one by one.
+    */
+   public void send(String message, LineSink sink) {
+      IrcMessage ircMessage;
+      Keys current;
       Encryptor encryptor;
-      Map<String, String> configTargets;
-      configTargets = config.getTargets();
-
-      for (String target : configTargets.keySet()) {
-         try {
 
-            key = configTargets.get(target);
-            if (key != null) {
-               encryptor = getEncryptor(key);
-               if (encryptor != null) {
-                  this.targets.put(target, encryptor);
-                  this.keyToTarget.put(key, target);
-               }
+      ircMessage = IrcMessage.parse(message);
+      if (isMessage(ircMessage)) {
+         if (ircMessage.trailingStartsWith(DONT_ENCRYPT_PREFIX)) {
+            sink.line(ircMessage.withTrailing(ircMessage.getTrailing().substring(DONT_ENCRYPT_PREFIX.length())));
+            return;
+         } else {
+            current = keys.get();
+            encryptor = current.targetIndex.get(ircMessage.getParam(0));
+            if (encryptor != null) {
+               send(current, encryptor, Buffers.get(), ircMessage, sink);
+               return;
             }
-
-         } catch (GeneralSecurityException ex) {
-            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
-         } catch (IOException ex) {
-            Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
          }
       }
+
+      sink.line(message);
    }
 
-   private Encryptor getEncryptor(String keyFromConfig)
-           throws GeneralSecurityException, IOException {
-      Encryptor result = null;
+   /**
+    * Encrypt a paste with the keys and the encryptor of its target looked up
+    * once.
+    */
+   public void send(List<String> messages, LineSink sink) {
+      IrcMessage ircMessage;
+      Keys current;
+      Buffers buffers;
+      String target;
+      Encryptor encryptor;
 
-      for (KeyParser keyParser : keyParsers) {
-         result = keyParser.getEncryptor(keyFromConfig);
-         if (result != null) {
-            break;
+      current = keys.get();
+      buffers = Buffers.get();
+      target = null;
+      encryptor = null;
+      for (String message : messages) {
+         ircMessage = IrcMessage.parse(message);
+         if (!isMessage(ircMessage) || ircMessage.trailingStartsWith(DONT_ENCRYPT_PREFIX)) {
+            send(message, sink);
+         } else {
+            if (target == null || !ircMessage.paramEquals(0, target)) {
+               target = ircMessage.getParam(0);
+               encryptor = current.targetIndex.get(target);
+            }
+            if (encryptor == null) {
+               sink.line(message);
+            } else {
+               send(current, encryptor, buffers, ircMessage, sink);
+            }
          }
       }
-
-      return result;
    }
 
-   protected String doSend(String message) {
-      StringBuilder result;
-      String[] parts;
+   public void receive(List<String> messages, LineSink sink) {
+      for (String message : messages) {
+         receive(message, sink);
+      }
+   }
 
-      parts = message.split(" ", 3);
-      if ("PRIVMSG".equals(parts[0])) {
-         if (parts[2].startsWith(":" + DONT_ENCRYPT_PREFIX)) {
-            return parts[0] + " " + parts[1] + " :" + parts[2].substring(DONT_ENCRYPT_PREFIX.length() + 1);
-         } else {
-            if (inEncryptionList(parts[1])) {
-               result = new StringBuilder();
+   public void receive(String message, LineSink sink) {
+      message = doReceive(message);
+      if (message.length() > 0) {
+         sink.line(message);
+      }
+   }
 
-               result.append(parts[0]);
-               result.append(" ");
-               result.append(parts[1]);
-               result.append(" :");
-               result.append(encrypt(parts[1], parts[2].substring(1)));
+   protected String doSend(String message) {
+      LineSink.Joiner result;
 
-               return linebreakFilter.send(result.toString());
-            }
-         }
-      }
+      result = new LineSink.Joiner();
+      send(message, result);
 
-      return message;
+      return result.toString();
    }
 
    protected String doReceive(String message) {
       StringBuilder result;
       String target;
-      Matcher messageMatcher;
+      int start;
+      int group;
+      IrcMessage ircMessage;
       Matcher encryptedMatcher;
+      Keys current;
 
       message = linebreakFilter.receive(message);
       if (message.length() == 0) {
          return message;
       }
 
-      messageMatcher = messagePattern.matcher(message);
-      if ( messageMatcher.matches() ) {
-         target = messageMatcher.group(3).startsWith("#")
-                     ? messageMatcher.group(3)
-                     : messageMatcher.group(1).substring(1, messageMatcher.group(1).indexOf('!'));
-         if (inEncryptionList(target)) {
-            result = new StringBuilder();
-            result.append(":");
-            result.append(messageMatcher.group(1));
-            result.append(" ");
-            result.append(messageMatcher.group(2));
-            result.append(" ");
-            result.append(messageMatcher.group(3));
-            result.append(" :");
-
-            encryptedMatcher = activeEncryptedPattern.matcher(messageMatcher.group(4));
+      ircMessage = IrcMessage.parse(message);
+      if (ircMessage.hasPrefix() && ircMessage.isCommand("PRIVMSG")
+              && ircMessage.getParamCount() == 2 && ircMessage.hasTrailing()) {
+         target = ircMessage.getParam(0).startsWith("#")
+                     ? ircMessage.getParam(0)
+                     : ircMessage.getNick();
+         current = keys.get();
+         if (inEncryptionList(current, target)) {
+            start = ircMessage.getTrailingStart();
+            result = Buffers.get().getLine();
+            result.append(message, 0, start);
+
+            encryptedMatcher = current.activeEncryptedPattern.matcher(message);
+            encryptedMatcher.region(start, message.length());
             if (encryptedMatcher.matches()) {
-               result.append( messageMatcher.group(4).substring(0, encryptedMatcher.start(encryptedMatcher.groupCount())) );
-               result.append( decrypt(target, encryptedMatcher.group(encryptedMatcher.groupCount())) );
+               group = encryptedMatcher.groupCount();
+               result.append(message, start, encryptedMatcher.start(group));
+               decrypt(current, target, message, encryptedMatcher.start(group), encryptedMatcher.end(group), result);
             } else {
-               result.append(plainPrefix);
-               result.append(messageMatcher.group(4));
+               result.append(current.plainPrefix);
+               result.append(message, start, message.length());
             }
 
             return result.toString();
@@ -761,52 +1902,144 @@ public class EncryptionFilter extends AbstractFilter {
       return message;
    }
 
-   private boolean inEncryptionList(String test) {
-      for (String target : targets.keySet()) {
-         if (test.matches(target)) {
-            return true;
-         }
-      }
-      return false;
+   private boolean inEncryptionList(Keys keys, String test) {
+      return keys.targetIndex.get(test) != null;
+   }
+
+   /**
+    * @return TRUE for a PRIVMSG with a target and a text.
+    */
+   private static boolean isMessage(IrcMessage ircMessage) {
+      return ircMessage.isCommand("PRIVMSG") && ircMessage.getParamCount() == 2 && ircMessage.hasTrailing();
    }
 
-   private String encrypt(String target, String message) {
-      String result;
+   /**
+    * Hand the lines of the message encrypted for its target to the sink.
+    */
+   private void send(Keys keys, Encryptor encryptor, Buffers buffers, IrcMessage ircMessage, LineSink sink) {
+      StringBuilder result;
+      String message;
+
+      message = ircMessage.getLine();
+      result = buffers.getLine();
+      result.append(message, 0, ircMessage.getTrailingStart());
+      encrypt(keys, encryptor, buffers, message, ircMessage.getTrailingStart(), result);
+      linebreakFilter.send(result.toString(), sink);
+   }
 
-      result = message;
+   /**
+    * Append the message from start on encrypted, or as it is when it cannot
+    * be encrypted.
+    */
+   private void encrypt(Keys keys, Encryptor encryptor, Buffers buffers, String message, int start,
+           StringBuilder result) {
+      int head;
+      int length;
+
+      head = result.length();
+      length = buffers.encode(message, start, message.length());
       try {
 
-         result = PREFIX + "|" + targets.get(target).encrypt(message);
+         // keys whose cipher has no authenticated mode keep sending PREFIX
+         if (keys.version >= 2 && encryptor.canSeal()) {
+            result.append(keys.version == 3 ? PREFIX3 : PREFIX2).append('|');
+            seal(keys, encryptor, buffers, length, keys.version == 3 ? base91 : base64, result);
+            return;
+         }
+         result.append(PREFIX).append('|');
+         encryptor.encrypt(buffers.getText(length), length, result);
 
       } catch (GeneralSecurityException ex) {
          Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+         result.setLength(head);
+         result.append(message, start, message.length());
       }
+   }
 
-      return result;
+   /**
+    * Append the header fields after the prefix and the sealed text.
+    */
+   private void seal(Keys keys, Encryptor encryptor, Buffers buffers, int length, Codec codec, StringBuilder result)
+           throws GeneralSecurityException {
+      byte[] packed;
+      int deflated;
+
+      packed = buffers.getPacked(length);
+      deflated = keys.compress ? compression.deflate(buffers.getText(length), length, packed) : -1;
+      if (deflated < 0) {
+         encryptor.seal(buffers.getText(length), length, codec, result);
+      } else {
+         result.append(FLAG_DEFLATED).append('|');
+         encryptor.seal(packed, deflated, codec, result);
+      }
    }
 
-   private String decrypt(String target, String message) {
-      String[] splited;
+   /**
+    * Append the message between start and end decrypted, or as it is when it
+    * cannot be decrypted.
+    */
+   private void decrypt(Keys keys, String target, String message, int start, int end, StringBuilder result) {
       Encryptor encryptor;
+      Buffers buffers;
+      int head;
+      int length;
 
-      splited = message.split("\\|", 3);
+      head = result.length();
+      buffers = Buffers.get();
       try {
 
-         if (splited.length == 3) {
-            encryptor = targets.get(target);
-            if (encryptor == null) {
-               Logger.getLogger(EncryptionFilter.class.getName())
-                       .log(Level.INFO, "No Encryptor for " + target);
+         encryptor = keys.targetIndex.get(target);
+         if (encryptor == null) {
+            Logger.getLogger(EncryptionFilter.class.getName())
+                    .log(Level.INFO, "No Encryptor for " + target);
+         } else {
+            result.append(keys.encryptedPrefix);
+            if (message.startsWith(PREFIX2 + "|", start)) {
+               open(encryptor, message, start + PREFIX2.length() + 1, end, base64, buffers, result);
+            } else if (message.startsWith(PREFIX3 + "|", start)) {
+               open(encryptor, message, start + PREFIX3.length() + 1, end, base91, buffers, result);
             } else {
-               return encryptedPrefix + encryptor.decrypt(splited[1], splited[2]);
+               length = encryptor.decrypt(message, start + PREFIX.length() + 1, end, buffers.getText(end - start));
+               buffers.decodeText(length, result);
             }
+            return;
          }
 
       } catch (GeneralSecurityException ex) {
          Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
+      } catch (DataFormatException ex) {
+         Logger.getLogger(EncryptionFilter.class.getName()).log(Level.WARNING, ex.getLocalizedMessage());
       }
 
-      return message;
+      result.setLength(head);
+      result.append(message, start, end);
+   }
+
+   private void open(Encryptor encryptor, String message, int start, int end, Codec codec,
+           Buffers buffers, StringBuilder result) throws GeneralSecurityException, DataFormatException {
+      int length;
+
+      if (message.startsWith(FLAG_DEFLATED + "|", start)) {
+         start += FLAG_DEFLATED.length() + 1;
+         length = encryptor.open(message, start, end, codec, buffers.getText(end - start));
+         length = compression.inflate(buffers.getText(length), length, buffers);
+         buffers.decodePacked(length, result);
+      } else {
+         length = encryptor.open(message, start, end, codec, buffers.getText(end - start));
+         buffers.decodeText(length, result);
+      }
+   }
+
+   /**
+    * @return the index of the character between start and end or -1.
+    */
+   private static int indexOf(CharSequence text, char c, int start, int end) {
+      for (int i = start; i < end; ++i) {
+         if (text.charAt(i) == c) {
+            return i;
+         }
+      }
+      return -1;
    }
 
    @Override
@@ -21,7 +21,7 @@
 package birch.filter;
 
 import birch.Filter;
-import birch.FilterFactory;
+import birch.CommandFilterFactory;
 
 import java.io.FileNotFoundException;
 import java.util.ServiceConfigurationError;
@@ -30,11 +30,11 @@ import java.util.ServiceConfigurationError;
  *
  * @author Beselius
  */
-public class EncryptionFilterFactory implements FilterFactory {
+public class EncryptionFilterFactory implements CommandFilterFactory {
 
    public Filter getFilterInstance(Filter next) throws ServiceConfigurationError {
       try {
-         return new EncryptionFilter(next, new EncryptionFilter.FileConfig("encryption.config"));
+         return new EncryptionFilter(next, EncryptionFilter.KeyFile.get("encryption.config"));
       } catch (FileNotFoundException ex) {
          throw new ServiceConfigurationError(ex.getLocalizedMessage(), ex);
       }
@@ -43,4 +43,12 @@ public class EncryptionFilterFactory implements FilterFactory {
    public String getFitlerName() {
       return EncryptionFilter.class.getName();
    }
+
+   public String[] getSendCommands() {
+      return EncryptionFilter.COMMANDS;
+   }
+
+   public String[] getReceiveCommands() {
+      return EncryptionFilter.RECEIVE_COMMANDS;
+   }
 }
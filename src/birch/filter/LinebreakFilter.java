@@ -22,120 +22,644 @@ package birch.filter;
 
 import birch.AbstractFilter;
 import birch.Filter;
+import birch.IrcMessage;
+import birch.LineFilter;
+import birch.LineSink;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Chops long messages into lines marked with {@link #LINEBREAK_INDICATOR}
+ * and joins the received lines again.
+ *
+ * The length of a line is measured in bytes of the charset of the
+ * connection, a line is never split inside a character. The server limits a
+ * message to {@link #MAX_MESSAGE_LENGTH} bytes including the prefix
+ * ":nick!user@host " it puts in front of a message it relays, so a line the
+ * client sends may be as long as the limit less the length of the prefix.
+ * Unless the maximum line length is given, the filter learns the prefix of
+ * the client from the welcome of the server, the echo of a JOIN of the
+ * client and the replies changing its nick or host.
+ *
+ * The start of a message is kept per sender until its last line arrives. A
+ * message is given to the client unfinished when it has more than the
+ * maximum number of lines or does not fit the {@link Budget}, and it is
+ * dropped when no line of it arrived for the time to live.
  *
  * @author Beselius
  */
-public class LinebreakFilter extends AbstractFilter {
+public class LinebreakFilter extends AbstractFilter implements LineFilter {
 
+   /** The only command the filter changes. */
+   public static final String[] COMMANDS = { "PRIVMSG" };
+   /** The commands the prefix of the client is learned from besides. */
+   public static final String[] RECEIVE_COMMANDS = { "PRIVMSG", "001", "JOIN", "NICK", "CHGHOST", "396" };
    public static final String LINEBREAK_INDICATOR = "<birchLB>";
-   public static final int DEFAULT_MAX_LINE_LENGTH = 400;
+   /** Bytes of a message including the prefix and "\r\n". */
+   public static final int MAX_MESSAGE_LENGTH = 512;
+   /** Bytes of the prefix of the messages relayed by the server. */
+   public static final int DEFAULT_PREFIX_LENGTH = 110;
+   /** Bytes of a line sent by the client, without "\r\n". */
+   public static final int DEFAULT_MAX_LINE_LENGTH = MAX_MESSAGE_LENGTH - 2 - DEFAULT_PREFIX_LENGTH;
+   /** Milliseconds a message is kept after its last line. */
+   public static final long DEFAULT_TIME_TO_LIVE = 60000;
+   /** Lines of one message. */
+   public static final int DEFAULT_MAX_FRAGMENTS = 32;
+   /** Characters of all messages being joined. */
+   public static final long DEFAULT_BUDGET = 1024 * 1024;
+   /** Milliseconds between two looks for expired messages. */
+   public static final long SWEEP_INTERVAL = 5000;
+
+   /**
+    * The characters all filters sharing it may keep, and what happened to the
+    * messages.
+    */
+   public static class Budget {
+
+      private final long limit;
+      private final AtomicLong used;
+      private final AtomicInteger buffers;
+      private final AtomicLong expired;
+      private final AtomicLong flushed;
+
+      public Budget(long limit) {
+         this.limit = limit;
+         used = new AtomicLong();
+         buffers = new AtomicInteger();
+         expired = new AtomicLong();
+         flushed = new AtomicLong();
+      }
+
+      /**
+       * @return FALSE when the characters would exceed the limit.
+       */
+      private boolean reserve(int chars) {
+         long current;
+
+         do {
+            current = used.get();
+            if (current + chars > limit) {
+               return false;
+            }
+         } while (!used.compareAndSet(current, current + chars));
+
+         return true;
+      }
+
+      private void release(long chars) {
+         used.addAndGet(-chars);
+      }
+
+      public long getLimit() {
+         return limit;
+      }
+
+      /**
+       * @return the characters kept now.
+       */
+      public long getUsed() {
+         return used.get();
+      }
+
+      /**
+       * @return the number of messages being joined now.
+       */
+      public int getBuffers() {
+         return buffers.get();
+      }
+
+      /**
+       * @return the number of messages dropped for missing their last line.
+       */
+      public long getExpired() {
+         return expired.get();
+      }
+
+      /**
+       * @return the number of messages given to the client unfinished.
+       */
+      public long getFlushed() {
+         return flushed.get();
+      }
+
+      @Override
+      public String toString() {
+         return "linebreak chars: " + getUsed() + "/" + getLimit() + ", messages: " + getBuffers()
+                 + ", expired: " + getExpired() + ", flushed: " + getFlushed();
+      }
+   }
+
+   /**
+    * A message being joined.
+    */
+   private static class Reassembly {
+
+      /** The head of the first line followed by the text so far. */
+      private final StringBuilder text;
+      private int fragments;
+      /** System.nanoTime() of the last line. */
+      private long touched;
+
+      private Reassembly(String sender) {
+         text = new StringBuilder(sender);
+      }
+   }
+
+   private static final Budget defaultBudget = new Budget(DEFAULT_BUDGET);
+
+   private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+           new ThreadFactory() {
+
+              public Thread newThread(Runnable runnable) {
+                 Thread thread;
 
-   private final int maxLineLength;
-   private Map<String, StringBuilder> buffers;
+                 thread = new Thread(runnable, "birch-linebreak");
+                 thread.setDaemon(true);
+
+                 return thread;
+              }
+           });
+
+   /** The filters with messages being joined. */
+   private static final Set<LinebreakFilter> active = new HashSet<LinebreakFilter>();
+   private static boolean sweepScheduled;
+
+   private static final Runnable sweepTask = new Runnable() {
+
+      public void run() {
+         sweep();
+      }
+   };
+
+   private volatile int maxLineLength;
+   private final boolean learning;
+   private final Charset charset;
+   private final long timeToLive;
+   private final int maxFragments;
+   private final Budget budget;
+   /** Least recently continued first, guarded by itself. */
+   private final LinkedHashMap<String, Reassembly> buffers;
+   private boolean registered;
+
+   private CharsetEncoder encoder;
+   private boolean utf8;
+   private int maxBytesPerChar;
+   private int indicatorLength;
+   /** Bytes counted by the last {@link #fit(String, int, int, int)}. */
+   private int fitted;
+   private ByteBuffer bytes;
+   /** The line being chopped off. */
+   private final StringBuilder line = new StringBuilder();
+
+   /** The prefix of the client as far as known. */
+   private String nick;
+   private String user;
+   private String host;
 
    public LinebreakFilter(Filter filter) {
-      this(filter, DEFAULT_MAX_LINE_LENGTH);
+      this(filter, Charset.defaultCharset());
    }
 
+   public LinebreakFilter(Filter filter, Charset charset) {
+      this(filter, 0, charset, DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_FRAGMENTS, defaultBudget);
+   }
+
+   /**
+    * @param maxLineLength bytes in the default charset.
+    */
    public LinebreakFilter(Filter filter, int maxLineLength) {
+      this(filter, maxLineLength, Charset.defaultCharset(), DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_FRAGMENTS,
+              defaultBudget);
+   }
+
+   /**
+    * @param maxLineLength bytes of a line sent by the client, 0 to learn it
+    * from the prefix of the client.
+    * @param charset of the lines of the connection.
+    * @param timeToLive milliseconds.
+    * @param budget shared with other filters.
+    */
+   public LinebreakFilter(Filter filter, int maxLineLength, Charset charset, long timeToLive, int maxFragments,
+           Budget budget) {
       super(filter);
 
-      this.maxLineLength = maxLineLength;
-      buffers = new HashMap<String, StringBuilder>();
+      this.learning = maxLineLength <= 0;
+      this.maxLineLength = learning ? DEFAULT_MAX_LINE_LENGTH : maxLineLength;
+      this.charset = charset;
+      this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+      this.maxFragments = maxFragments;
+      this.budget = budget;
+      buffers = new LinkedHashMap<String, Reassembly>(16, 0.75f, true);
    }
 
-   protected String doSend(String message) {
-      String result;
-      String prefix;
-      String[] parts;
+   /**
+    * @return the budget of the filters created without one.
+    */
+   public static Budget getDefaultBudget() {
+      return defaultBudget;
+   }
+
+   /**
+    * Let the lines sent be as long as the server allows with a prefix of the
+    * length.
+    * @param length bytes of ":nick!user@host ".
+    */
+   public void setPrefixLength(int length) {
+      maxLineLength = MAX_MESSAGE_LENGTH - 2 - length;
+   }
+
+   public int getMaxLineLength() {
+      return maxLineLength;
+   }
 
-      result = message;
+   /**
+    * Hand the lines of a long message to the sink one by one.
+    */
+   public void send(String message, LineSink sink) {
+      IrcMessage ircMessage;
+      int limit;
 
-      if (result.startsWith("PRIVMSG") && result.length() > maxLineLength) {
-         parts = result.split(" ", 3);
-         if (parts.length == 3) {
-            prefix = parts[0] + " " + parts[1] + " :";
-            result = chopMessage(prefix, parts[2].substring(1));
+      limit = maxLineLength;
+      if (message.length() > limit / getMaxBytesPerChar()) {
+         ircMessage = IrcMessage.parse(message);
+         if (ircMessage.isCommand("PRIVMSG") && ircMessage.getParamCount() == 2 && ircMessage.hasTrailing()) {
+            chopMessage(message, ircMessage.getTrailingStart(), limit, sink);
+            return;
          }
       }
 
-      return result;
+      sink.line(message);
+   }
+
+   public void receive(String message, LineSink sink) {
+      message = doReceive(message);
+      if (message.length() > 0) {
+         sink.line(message);
+      }
+   }
+
+   protected String doSend(String message) {
+      LineSink.Joiner result;
+
+      if (message.length() <= maxLineLength / getMaxBytesPerChar()) {
+         return message;
+      }
+      result = new LineSink.Joiner();
+      send(message, result);
+
+      return result.toString();
    }
 
    protected String doReceive(String message) {
-      String result;
-      StringBuilder buffer;
-      String[] parts;
+      IrcMessage ircMessage;
+
+      ircMessage = IrcMessage.parse(message);
+      if (ircMessage.hasPrefix() && ircMessage.isCommand("PRIVMSG") && ircMessage.hasTrailing()) {
+         synchronized (buffers) {
+            if (ircMessage.trailingStartsWith(LINEBREAK_INDICATOR)) {
+               return append(ircMessage);
+            } else if (!buffers.isEmpty()) {
+               return finish(ircMessage);
+            }
+         }
+      } else if (learning && !ircMessage.isCommand("PRIVMSG")) {
+         learnPrefix(ircMessage);
+      }
+
+      return message;
+   }
+
+   /**
+    * @return the number of messages being joined.
+    */
+   public int getBuffers() {
+      synchronized (buffers) {
+         return buffers.size();
+      }
+   }
+
+   /**
+    * Keep the text of a line which is continued.
+    * @return "" or the unfinished message with the line when it cannot be
+    * kept.
+    */
+   private String append(IrcMessage ircMessage) {
+      Reassembly reassembly;
+      String line;
       String sender;
+      int start;
+
+      // ":nick!user@host PRIVMSG target :" tells the senders apart
+      sender = ircMessage.getHead();
+      line = ircMessage.getLine();
+      start = ircMessage.getTrailingStart() + LINEBREAK_INDICATOR.length();
+
+      reassembly = buffers.get(sender);
+      if (reassembly == null) {
+         if (!budget.reserve(sender.length() + line.length() - start)) {
+            budget.flushed.incrementAndGet();
+            return sender + line.substring(start);
+         }
+         reassembly = new Reassembly(sender);
+         buffers.put(sender, reassembly);
+         budget.buffers.incrementAndGet();
+         if (!registered) {
+            registered = true;
+            register(this);
+         }
+      } else if (reassembly.fragments >= maxFragments || !budget.reserve(line.length() - start)) {
+         Logger.getLogger(LinebreakFilter.class.getName()).log(Level.FINE,
+                 "Message of " + sender + " given up after " + reassembly.fragments + " lines.");
+         remove(sender, reassembly);
+         budget.flushed.incrementAndGet();
+         return reassembly.text.append(line, start, line.length()).toString();
+      }
+      reassembly.text.append(line, start, line.length());
+      ++reassembly.fragments;
+      reassembly.touched = System.nanoTime();
+
+      return "";
+   }
+
+   /**
+    * @return the joined message if the line ends one.
+    */
+   private String finish(IrcMessage ircMessage) {
+      Reassembly reassembly;
+
+      reassembly = buffers.get(ircMessage.getHead());
+      if (reassembly == null) {
+         return ircMessage.getLine();
+      }
+      remove(ircMessage.getHead(), reassembly);
+
+      return reassembly.text.append(ircMessage.getLine(), ircMessage.getTrailingStart(),
+              ircMessage.getLine().length()).toString();
+   }
+
+   /**
+    * Follow the nick, user and host of the client and fit the maximum line
+    * length to them.
+    */
+   private void learnPrefix(IrcMessage ircMessage) {
+      String trailing;
+      int length;
 
-      result = message;
-
-      parts = result.split(" ", 4);
-      if (parts.length == 4 && parts[1].startsWith("PRIVMSG")) {
-         sender = extractSender(message);
-         buffer = buffers.get(sender);
-         if (buffer == null) {
-            buffer = new StringBuilder();
-         }
-         if (parts[3].startsWith(":" + LINEBREAK_INDICATOR)) {
-            buffers.put(sender, buffer);
-            if (buffer.length() == 0) {
-               buffer.append(parts[0]);
-               buffer.append(' ');
-               buffer.append(parts[1]);
-               buffer.append(' ');
-               buffer.append(parts[2]);
-               buffer.append(" :");
+      if (ircMessage.isCommand("001") && ircMessage.getParamCount() > 0) {
+         // "Welcome to the Internet Relay Network nick!user@host"
+         nick = ircMessage.getParam(0);
+         user = null;
+         host = null;
+         if (ircMessage.getParamCount() > 1 && ircMessage.hasTrailing()) {
+            trailing = ircMessage.getTrailing();
+            setMask(trailing.substring(trailing.lastIndexOf(' ') + 1));
+         }
+      } else if (nick == null) {
+         return;
+      } else if (ircMessage.isCommand("396") && ircMessage.getParamCount() > 1
+              && nick.equalsIgnoreCase(ircMessage.getParam(0))) {
+         // RPL_HOSTHIDDEN "nick host :is now your displayed host"
+         host = ircMessage.getParam(1);
+      } else if (ircMessage.hasPrefix() && nick.equalsIgnoreCase(ircMessage.getNick())) {
+         if (ircMessage.isCommand("JOIN")) {
+            setMask(ircMessage.getPrefix());
+         } else if (ircMessage.isCommand("NICK") && ircMessage.getParamCount() > 0) {
+            nick = ircMessage.getParam(0);
+         } else if (ircMessage.isCommand("CHGHOST") && ircMessage.getParamCount() > 1) {
+            user = ircMessage.getParam(0);
+            host = ircMessage.getParam(1);
+         }
+      }
+
+      if (nick != null && user != null && host != null) {
+         length = (":" + nick + "!" + user + "@" + host + " ").getBytes(charset).length;
+         if (MAX_MESSAGE_LENGTH - 2 - length != maxLineLength) {
+            setPrefixLength(length);
+            Logger.getLogger(LinebreakFilter.class.getName()).log(Level.FINE,
+                    "Prefix " + nick + "!" + user + "@" + host + ", lines up to " + maxLineLength + " bytes.");
+         }
+      }
+   }
+
+   /**
+    * Take user and host from "nick!user@host" if it is the one of the nick.
+    */
+   private void setMask(String mask) {
+      int bang;
+      int at;
+
+      bang = mask.indexOf('!');
+      at = mask.indexOf('@', bang + 1);
+      if (bang > 0 && at > bang && nick.equalsIgnoreCase(mask.substring(0, bang))) {
+         user = mask.substring(bang + 1, at);
+         host = mask.substring(at + 1);
+      }
+   }
+
+   private void remove(String sender, Reassembly reassembly) {
+      buffers.remove(sender);
+      budget.release(reassembly.text.length());
+      budget.buffers.decrementAndGet();
+   }
+
+   /**
+    * Drop the messages which were not continued for the time to live.
+    */
+   private void expire(long now) {
+      Iterator<Map.Entry<String, Reassembly>> iterator;
+      Reassembly reassembly;
+
+      synchronized (buffers) {
+         iterator = buffers.entrySet().iterator();
+         while (iterator.hasNext()) {
+            reassembly = iterator.next().getValue();
+            if (now - reassembly.touched < timeToLive) {
+               break;
             }
-            buffer.append(parts[3].substring(LINEBREAK_INDICATOR.length() + 1));
-            result = "";
-         } else {
-            if (buffer.length() > 0) {
-               buffer.append(parts[3].substring(1));
-               result = buffer.toString();
-               buffers.remove(sender);
+            iterator.remove();
+            budget.release(reassembly.text.length());
+            budget.buffers.decrementAndGet();
+            budget.expired.incrementAndGet();
+         }
+         if (buffers.isEmpty()) {
+            registered = false;
+            synchronized (active) {
+               active.remove(this);
             }
          }
       }
+   }
 
-      return result;
+   /** Called with the lock of the filter. */
+   private static void register(LinebreakFilter filter) {
+      synchronized (active) {
+         active.add(filter);
+         if (!sweepScheduled) {
+            sweepScheduled = true;
+            timer.schedule(sweepTask, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+         }
+      }
    }
 
-   private String chopMessage(String prefix, String substring) {
-      StringBuilder result;
-      int max_length;
+   private static void sweep() {
+      List<LinebreakFilter> filters;
+      long now;
+
+      synchronized (active) {
+         filters = new ArrayList<LinebreakFilter>(active);
+      }
+      now = System.nanoTime();
+      for (LinebreakFilter filter : filters) {
+         filter.expire(now);
+      }
+      synchronized (active) {
+         if (active.isEmpty()) {
+            sweepScheduled = false;
+         } else {
+            timer.schedule(sweepTask, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+         }
+      }
+   }
+
+   /**
+    * Split the message into lines of at most limit bytes. Every line but the
+    * last is marked with the {@link #LINEBREAK_INDICATOR}.
+    * @param start of the text in the message.
+    * @param sink gets the lines or the message when it fits.
+    */
+   private void chopMessage(String message, int start, int limit, LineSink sink) {
+      int room;
       int position;
       int end;
-      int length;
 
-      result = new StringBuilder();
+      if (fit(message, 0, start, limit) < start) {
+         sink.line(message);
+         return;
+      }
+      room = limit - fitted;
+      if (room - indicatorLength < 2 * maxBytesPerChar) {
+         // no room for the text
+         sink.line(message);
+         return;
+      }
 
-      length = substring.length();
-      max_length = maxLineLength - prefix.length();
-      position = 0;
-      while (position < length) {
-         if (position != 0) {
-            result.append("\n");
+      position = start;
+      while (position < message.length()) {
+         // as much as fits a marked line, unless the rest fits without mark
+         end = fit(message, position, message.length(), room - indicatorLength);
+         if (end < message.length()
+                 && fit(message, end, message.length(), room - fitted) == message.length()) {
+            end = message.length();
          }
-         result.append(prefix);
-         if (length - position > max_length) {
-            end =  position + max_length - LINEBREAK_INDICATOR.length();
-            result.append(LINEBREAK_INDICATOR);
-         } else {
-            end = length;
+         if (position == start && end == message.length()) {
+            sink.line(message);
+            return;
+         }
+
+         line.setLength(0);
+         line.append(message, 0, start);
+         if (end < message.length()) {
+            line.append(LINEBREAK_INDICATOR);
          }
-         result.append(substring.substring(position, end));
+         line.append(message, position, end);
+         sink.line(line.toString());
          position = end;
       }
+   }
 
-      return result.toString();
+   /**
+    * Count the bytes of the characters from start on until they do not fit
+    * the room. A surrogate pair is not split. The bytes counted are left in
+    * {@link #fitted}.
+    * @return the index of the first character which does not fit, end when
+    * all fit.
+    */
+   private int fit(String message, int start, int end, int room) {
+      CharBuffer text;
+      ByteBuffer out;
+      int length;
+      char c;
+
+      if (utf8) {
+         fitted = 0;
+         for (int i = start; i < end; ++i) {
+            c = message.charAt(i);
+            if (c < 0x80) {
+               length = 1;
+            } else if (c < 0x800) {
+               length = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end
+                    && Character.isLowSurrogate(message.charAt(i + 1))) {
+               length = 4;
+            } else if (Character.isSurrogate(c)) {
+               // replaced by '?'
+               length = 1;
+            } else {
+               length = 3;
+            }
+            if (fitted + length > room) {
+               return i;
+            }
+            fitted += length;
+            if (length == 4) {
+               ++i;
+            }
+         }
+         return end;
+      }
+
+      if (maxBytesPerChar == 1) {
+         length = Math.min(end, start + room);
+         if (length < end && length > start && Character.isHighSurrogate(message.charAt(length - 1))) {
+            --length;
+         }
+         fitted = length - start;
+         return length;
+      }
+
+      text = CharBuffer.wrap(message, start, end);
+      out = getBytes(room);
+      encoder.reset();
+      encoder.encode(text, out, true);
+      fitted = out.position();
+      return text.position();
    }
 
-   private String extractSender(String message) {
-      return message.substring(1, message.indexOf(':', 1));
+   private int getMaxBytesPerChar() {
+      if (encoder == null) {
+         encoder = charset.newEncoder()
+                 .onMalformedInput(CodingErrorAction.REPLACE)
+                 .onUnmappableCharacter(CodingErrorAction.REPLACE);
+         maxBytesPerChar = Math.max(1, (int) Math.ceil(encoder.maxBytesPerChar()));
+         indicatorLength = LINEBREAK_INDICATOR.getBytes(charset).length;
+         utf8 = charset.name().equals("UTF-8");
+      }
+      return maxBytesPerChar;
+   }
+
+   /**
+    * @return a cleared buffer limited to length bytes.
+    */
+   private ByteBuffer getBytes(int length) {
+      if (bytes == null || bytes.capacity() < length) {
+         bytes = ByteBuffer.allocate(Math.max(length, MAX_MESSAGE_LENGTH));
+      }
+      bytes.clear();
+      bytes.limit(length);
+      return bytes;
    }
 }
@@ -21,7 +21,10 @@
 package birch.filter;
 
 import birch.Filter;
-import birch.FilterFactory;
+import birch.CharsetFilterFactory;
+import birch.CommandFilterFactory;
+
+import java.nio.charset.Charset;
 
 import java.util.ServiceConfigurationError;
 
@@ -29,14 +32,26 @@ import java.util.ServiceConfigurationError;
  *
  * @author Beselius
  */
-public class LinebreakFilterFactory implements FilterFactory {
+public class LinebreakFilterFactory implements CommandFilterFactory, CharsetFilterFactory {
 
    public Filter getFilterInstance(Filter next) throws ServiceConfigurationError {
       return new LinebreakFilter(next);
    }
 
+   public Filter getFilterInstance(Filter next, Charset charset) throws ServiceConfigurationError {
+      return new LinebreakFilter(next, charset);
+   }
+
    public String getFitlerName() {
       return LinebreakFilter.class.getName();
    }
 
+   public String[] getSendCommands() {
+      return LinebreakFilter.COMMANDS;
+   }
+
+   public String[] getReceiveCommands() {
+      return LinebreakFilter.RECEIVE_COMMANDS;
+   }
+
 }
@@ -21,12 +21,15 @@
 package birch.filter;
 
 import birch.Filter;
+import birch.IrcMessage;
+import birch.LineFilter;
+import birch.LineSink;
 
 /**
  *
  * @author Beselius
  */
-public class TestFilter implements Filter {
+public class TestFilter implements LineFilter {
 
    private Filter filter;
 
@@ -34,14 +37,23 @@ public class TestFilter implements Filter {
       this.filter = filter;
    }
 
+   public void send(String message, LineSink sink) {
+      sink.line(message);
+      if (IrcMessage.parse(message).isCommand("PRIVMSG")) {
+         sink.line("PRIVMSG #bsel :test");
+      }
+   }
+
+   public void receive(String message, LineSink sink) {
+      sink.line(message);
+   }
+
    public String send(String message) {
       String result;
-      String[] splited;
 
       result = message;
 
-      splited = message.split(" ", 3);
-      if ("PRIVMSG".equals(splited[0])) {
+      if (IrcMessage.parse(message).isCommand("PRIVMSG")) {
          result = message + "\nPRIVMSG #bsel :test";
       } else {
          result = message;
@@ -0,0 +1,145 @@
+/*
+ * IrcMessageTest.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Beselius
+ */
+public class IrcMessageTest {
+
+   @Test
+   public void testPrefix() {
+      IrcMessage message;
+
+      message = IrcMessage.parse(":nick!user@host PRIVMSG #channel :hello world");
+      assertTrue(message.hasPrefix());
+      assertEquals("nick!user@host", message.getPrefix());
+      assertEquals("nick", message.getNick());
+      assertEquals("PRIVMSG", message.getCommand());
+
+      message = IrcMessage.parse(":irc.example.org 001 nick :Welcome");
+      assertEquals("irc.example.org", message.getNick());
+      assertEquals("001", message.getCommand());
+
+      message = IrcMessage.parse("PING :server");
+      assertFalse(message.hasPrefix());
+      assertNull(message.getPrefix());
+      assertNull(message.getNick());
+   }
+
+   @Test
+   public void testCommand() {
+      IrcMessage message;
+
+      message = IrcMessage.parse(":nick  privmsg #channel :x");
+      assertEquals("privmsg", message.getCommand());
+      assertTrue(message.isCommand("PRIVMSG"));
+      assertFalse(message.isCommand("PRIVMS"));
+      assertFalse(message.isCommand("NOTICE"));
+
+      message = IrcMessage.parse("QUIT");
+      assertTrue(message.isCommand("QUIT"));
+      assertEquals(0, message.getParamCount());
+      assertFalse(message.hasTrailing());
+      assertNull(message.getTrailing());
+   }
+
+   @Test
+   public void testParams() {
+      IrcMessage message;
+
+      message = IrcMessage.parse(":n PRIVMSG #channel  :hello : world ");
+      assertEquals(2, message.getParamCount());
+      assertEquals("#channel", message.getParam(0));
+      assertTrue(message.paramEquals(0, "#channel"));
+      assertFalse(message.paramEquals(0, "#chan"));
+      assertFalse(message.paramEquals(2, "#channel"));
+      assertTrue(message.hasTrailing());
+      assertEquals("hello : world ", message.getTrailing());
+      assertEquals("hello : world ", message.getParam(1));
+      assertTrue(message.trailingStartsWith("hello"));
+
+      message = IrcMessage.parse("MODE #channel +o nick");
+      assertEquals(3, message.getParamCount());
+      assertEquals("nick", message.getParam(2));
+      assertFalse(message.hasTrailing());
+      assertEquals(-1, message.getTrailingStart());
+   }
+
+   @Test
+   public void testManyParams() {
+      IrcMessage message;
+
+      message = IrcMessage.parse("CMD 1 2 3 4 5 6 7 8 9 :10");
+      assertEquals(10, message.getParamCount());
+      assertEquals("9", message.getParam(8));
+      assertEquals("10", message.getParam(9));
+   }
+
+   @Test(expected = IndexOutOfBoundsException.class)
+   public void testParamOutOfBounds() {
+      IrcMessage.parse("PING :server").getParam(1);
+   }
+
+   @Test
+   public void testWithTrailing() {
+      IrcMessage message;
+
+      message = IrcMessage.parse(":n PRIVMSG #channel :hello");
+      assertEquals(":n PRIVMSG #channel :", message.getHead());
+      assertEquals(":n PRIVMSG #channel :bye", message.withTrailing("bye"));
+
+      message = IrcMessage.parse("PRIVMSG #channel");
+      assertEquals("PRIVMSG #channel :bye", message.withTrailing("bye"));
+   }
+
+   @Test
+   public void testSharedParse() {
+      String line;
+
+      line = "PRIVMSG #channel :hello";
+      assertSame(IrcMessage.parse(line), IrcMessage.parse(line));
+      assertNotSame(IrcMessage.parse(line), IrcMessage.parse(new String(line)));
+   }
+
+   @Test
+   public void testBytes() {
+      byte[] bytes;
+      int start;
+
+      bytes = ":nick!u@h privmsg #c :x".getBytes(StandardCharsets.US_ASCII);
+      start = IrcMessage.commandStart(bytes, 0, bytes.length);
+      assertEquals(10, start);
+      assertEquals(17, IrcMessage.wordEnd(bytes, start, bytes.length));
+      assertTrue(IrcMessage.regionMatches(bytes, start, 17, "PRIVMSG"));
+      assertFalse(IrcMessage.regionMatches(bytes, start, 17, "NOTICE"));
+
+      bytes = "PING".getBytes(StandardCharsets.US_ASCII);
+      assertEquals(0, IrcMessage.commandStart(bytes, 0, bytes.length));
+      assertEquals(4, IrcMessage.wordEnd(bytes, 0, bytes.length));
+   }
+}
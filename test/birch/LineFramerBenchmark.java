@@ -0,0 +1,106 @@
+/*
+ * LineFramerBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splits a read of IRC lines with {@link LineFramer} and with
+ * BufferedReader.readLine, which decoded every line before.
+ *
+ * @author Beselius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineFramerBenchmark {
+
+   private static final Charset charset = StandardCharsets.UTF_8;
+
+   private byte[] read;
+   private LineFramer framer;
+   private Blackhole blackhole;
+
+   private final LineFramer.Handler slices = new LineFramer.Handler() {
+
+      public void line(byte[] bytes, int offset, int length) {
+         blackhole.consume(length);
+      }
+   };
+
+   private final LineFramer.Handler decoded = new LineFramer.Handler() {
+
+      public void line(byte[] bytes, int offset, int length) {
+         blackhole.consume(new String(bytes, offset, length, charset));
+      }
+   };
+
+   @Setup
+   public void setup() {
+      StringBuilder lines;
+
+      lines = new StringBuilder();
+      for (int i = 0; lines.length() < AbstractFilteredConnection.READ_BUFFER_SIZE - 100; ++i) {
+         lines.append(":nick").append(i % 7).append("!user@host.example.org PRIVMSG #channel :")
+                 .append("line ").append(i).append(" of a busy channel, äöü\r\n");
+      }
+      read = lines.toString().getBytes(charset);
+      framer = new LineFramer();
+   }
+
+   /** The lines of one read, 8 KB. */
+   @Benchmark
+   public void framer(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      framer.frame(read, 0, read.length, slices);
+   }
+
+   @Benchmark
+   public void framerDecoded(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      framer.frame(read, 0, read.length, decoded);
+   }
+
+   @Benchmark
+   public void readLine(Blackhole blackhole) throws IOException {
+      BufferedReader reader;
+      String line;
+
+      reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(read), charset));
+      while ((line = reader.readLine()) != null) {
+         blackhole.consume(line);
+      }
+   }
+}
@@ -0,0 +1,136 @@
+/*
+ * LineFramerTest.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Beselius
+ */
+public class LineFramerTest {
+
+   /** Collects the lines framed. */
+   private static class Lines implements LineFramer.Handler {
+
+      private final List<String> lines = new ArrayList<String>();
+
+      public void line(byte[] bytes, int offset, int length) {
+         lines.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+      }
+   }
+
+   private static List<String> frame(LineFramer framer, String... reads) {
+      Lines result;
+      byte[] bytes;
+
+      result = new Lines();
+      for (String read : reads) {
+         bytes = read.getBytes(StandardCharsets.UTF_8);
+         framer.frame(bytes, 0, bytes.length, result);
+      }
+
+      return result.lines;
+   }
+
+   @Test
+   public void testLineEnds() {
+      assertEquals(Arrays.asList("a", "b", "c", "", "d"),
+              frame(new LineFramer(), "a\nb\rc\r\n\nd\n"));
+   }
+
+   @Test
+   public void testSlice() {
+      Lines lines;
+      byte[] bytes;
+
+      lines = new Lines();
+      bytes = "xxPING a\r\nPING b\r\nyy".getBytes(StandardCharsets.UTF_8);
+      new LineFramer().frame(bytes, 2, bytes.length - 2, lines);
+
+      assertEquals(Arrays.asList("PING a", "PING b"), lines.lines);
+   }
+
+   @Test
+   public void testSplitOverReads() {
+      LineFramer framer;
+
+      framer = new LineFramer();
+      assertEquals(Arrays.asList("PRIVMSG #c :äö"), frame(framer, "PRIVMSG", " #c :ä", "ö\r"));
+      assertFalse(framer.hasPartialLine());
+      // the LF of a CRLF split over two reads is no empty line
+      assertEquals(Arrays.asList("next"), frame(framer, "\nnext\n"));
+   }
+
+   @Test
+   public void testCRLFSplitOverReads() {
+      assertEquals(Arrays.asList("a", "b"), frame(new LineFramer(), "a\r", "\n", "b\r\n"));
+   }
+
+   @Test
+   public void testPartialLineKept() {
+      LineFramer framer;
+
+      framer = new LineFramer();
+      assertEquals(Arrays.asList("a"), frame(framer, "a\nb"));
+      assertTrue(framer.hasPartialLine());
+      assertEquals(Arrays.asList("bc"), frame(framer, "c\n"));
+      assertFalse(framer.hasPartialLine());
+   }
+
+   @Test
+   public void testLongLineDropped() {
+      LineFramer framer;
+
+      framer = new LineFramer(8);
+      assertEquals(Arrays.asList("12345678", "ok"), frame(framer, "12345678\n123456789\nok\n"));
+      assertEquals(1, framer.getDroppedLines());
+   }
+
+   @Test
+   public void testLongLineOverReadsDropped() {
+      LineFramer framer;
+
+      framer = new LineFramer(8);
+      assertEquals(Arrays.asList("ok"), frame(framer, "12345", "6789", "0123456789", "abc\nok\n"));
+      assertEquals(1, framer.getDroppedLines());
+      assertFalse(framer.hasPartialLine());
+   }
+
+   @Test
+   public void testNoLineEndDoesNotGrow() {
+      LineFramer framer;
+
+      framer = new LineFramer(8);
+      for (int i = 0; i < 1000; ++i) {
+         assertTrue(frame(framer, "0123456789").isEmpty());
+      }
+      assertEquals(1, framer.getDroppedLines());
+      assertEquals(Arrays.asList("end"), frame(framer, "\nend\n"));
+   }
+}
@@ -0,0 +1,144 @@
+/*
+ * OutboundQueueTest.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Beselius
+ */
+public class OutboundQueueTest {
+
+   private static class Queue extends OutboundQueue {
+
+      @Override
+      public void write(int b) {
+         queued(1);
+      }
+
+      public void take(long bytes) {
+         sent(bytes);
+      }
+   }
+
+   /** Counts how often the peer is paused. */
+   private static class Peer implements OutboundQueue.Listener {
+
+      private final AtomicInteger paused = new AtomicInteger();
+
+      public void high() {
+         paused.incrementAndGet();
+      }
+
+      public void low() {
+         paused.decrementAndGet();
+      }
+   }
+
+   @Test
+   public void testWatermarks() {
+      Queue queue;
+      Peer peer;
+
+      queue = new Queue();
+      peer = new Peer();
+      queue.setWatermarks(10, 20, peer);
+
+      queue.queued(19);
+      assertFalse(queue.isHigh());
+      queue.queued(1);
+      assertTrue(queue.isHigh());
+      assertEquals(1, peer.paused.get());
+      queue.queued(5);
+      assertEquals(1, queue.getHighCount());
+
+      queue.take(14);
+      assertTrue(queue.isHigh());
+      queue.take(1);
+      assertFalse(queue.isHigh());
+      assertEquals(0, peer.paused.get());
+      assertEquals(10, queue.getQueued());
+      assertEquals(25, queue.getPeak());
+   }
+
+   /**
+    * The writer drains the queue while the peer is being paused. Low must be
+    * told after high, else the peer stays paused with an empty queue.
+    */
+   @Test
+   public void testDrainedWhilePausing() throws Exception {
+      final Queue queue;
+      final CountDownLatch pausing;
+      final CountDownLatch resumed;
+      final AtomicBoolean paused;
+      Thread writer;
+
+      queue = new Queue();
+      pausing = new CountDownLatch(1);
+      resumed = new CountDownLatch(1);
+      paused = new AtomicBoolean();
+      queue.setWatermarks(0, 100, new OutboundQueue.Listener() {
+
+         public void high() {
+            pausing.countDown();
+            try {
+               // give the writer the chance to resume the peer first
+               resumed.await(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            }
+            paused.set(true);
+         }
+
+         public void low() {
+            paused.set(false);
+            resumed.countDown();
+         }
+      });
+
+      writer = new Thread() {
+
+         @Override
+         public void run() {
+            try {
+               pausing.await();
+               queue.take(100);
+            } catch (InterruptedException ex) {
+               Thread.currentThread().interrupt();
+            }
+         }
+      };
+      writer.start();
+      queue.queued(100);
+      writer.join();
+
+      assertEquals(0, queue.getQueued());
+      assertFalse(queue.isHigh());
+      assertFalse(paused.get());
+   }
+}
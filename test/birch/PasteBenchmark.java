@@ -0,0 +1,121 @@
+/*
+ * PasteBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A paste of 200 lines through the filter chain of the proxy, the
+ * {@link birch.filter.LinebreakFilter} and the
+ * {@link birch.filter.EncryptionFilter} with the keys of encryption.config,
+ * handed over as one batch and line by line.
+ *
+ * @author Beselius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PasteBenchmark {
+
+   public static final int LINES = 200;
+   /** A target of encryption.config. */
+   public static final String TARGET = "#bsel";
+
+   private LineFilter chain;
+   private final List<String> sent = new ArrayList<String>();
+   private final List<String> received = new ArrayList<String>();
+   private Blackhole blackhole;
+
+   private final LineSink sink = new LineSink() {
+
+      public void line(String line) {
+         blackhole.consume(line);
+      }
+   };
+
+   @Setup
+   @SuppressWarnings("unchecked")
+   public void setup() throws ClassNotFoundException {
+      ServiceLoader<FilterFactory>[] loaders;
+      final List<String> encrypted;
+
+      loaders = new ServiceLoader[] { ServiceLoader.load(FilterFactory.class) };
+      chain = FilterAdapter.adapt(new FilterChain(loaders,
+              new String[] { "birch.filter.LinebreakFilter", "birch.filter.EncryptionFilter" }).getNewList());
+
+      for (int i = 0; i < LINES; ++i) {
+         sent.add("PRIVMSG " + TARGET + " :    at birch.Paste.line(Paste.java:" + i + ") of a stack trace");
+      }
+      encrypted = new ArrayList<String>();
+      FilterAdapter.sendBatch(chain, sent, new LineSink() {
+
+         public void line(String line) {
+            encrypted.add(":alice!u@h " + line);
+         }
+      });
+      if (encrypted.get(0).endsWith(sent.get(0))) {
+         throw new IllegalStateException("No key for " + TARGET + ", run in the directory of encryption.config.");
+      }
+      received.addAll(encrypted);
+   }
+
+   @TearDown
+   public void tearDown() {
+      FilterAdapter.close(chain);
+   }
+
+   @Benchmark
+   public void sendBatch(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      FilterAdapter.sendBatch(chain, sent, sink);
+   }
+
+   @Benchmark
+   public void sendLines(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      for (int i = 0; i < sent.size(); ++i) {
+         chain.send(sent.get(i), sink);
+      }
+   }
+
+   @Benchmark
+   public void receiveBatch(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      FilterAdapter.receiveBatch(chain, received, sink);
+   }
+
+   @Benchmark
+   public void receiveLines(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      for (int i = 0; i < received.size(); ++i) {
+         chain.receive(received.get(i), sink);
+      }
+   }
+}
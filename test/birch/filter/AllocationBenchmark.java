@@ -0,0 +1,108 @@
+/*
+ * AllocationBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.LineSink;
+import birch.Filter;
+
+import java.security.GeneralSecurityException;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A line encrypted and decrypted by {@link EncryptionFilter}, to be run with
+ * the profiler of the garbage collector:
+ * <pre>ant benchmark -Dbenchmark.args="AllocationBenchmark -prof gc"</pre>
+ * The line handed on is the only string a message needs, the rest is
+ * allocated by the cipher, which {@link #cipher()} shows alone.
+ *
+ * @author Beselius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocationBenchmark {
+
+   @Param({ "1", "2", "3" })
+   public String version;
+
+   private EncryptionFilter filter;
+   private String message;
+   private String received;
+   private Blackhole blackhole;
+
+   private SecretKeySpec key;
+   private Cipher cipher;
+   private byte[] nonce;
+   private byte[] text;
+   private byte[] crypted;
+
+   private final LineSink sink = new LineSink() {
+
+      public void line(String line) {
+         blackhole.consume(line);
+      }
+   };
+
+   @Setup
+   public void setup() throws GeneralSecurityException {
+      message = "PRIVMSG #channel :a short line of a busy channel";
+      filter = new EncryptionFilter(Filter.nullObject, new EncryptionFilterTest.Config()
+              .target("#channel", "MDEyMzQ1Njc4OWFiY2RlZg==").property("version", version));
+      received = ":alice!u@h " + filter.send(message);
+
+      key = new SecretKeySpec("0123456789abcdef".getBytes(), "AES");
+      cipher = Cipher.getInstance("AES" + EncryptionFilter.SEAL_CIPHER_MODE);
+      nonce = new byte[12];
+      text = message.getBytes();
+      crypted = new byte[text.length + 16];
+   }
+
+   @Benchmark
+   public void send(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      filter.send(message, sink);
+   }
+
+   @Benchmark
+   public void receive(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      filter.receive(received, sink);
+   }
+
+   /** AES-GCM of the text into a kept array. */
+   @Benchmark
+   public int cipher() throws GeneralSecurityException {
+      ++nonce[0];
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+      return cipher.doFinal(text, 0, text.length, crypted, 0);
+   }
+}
@@ -0,0 +1,113 @@
+/*
+ * Base91Test.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Beselius
+ */
+public class Base91Test {
+
+   @Test
+   public void testRoundTrip() {
+      Random random;
+      byte[] bytes;
+      String text;
+
+      random = new Random(91);
+      for (int length = 0; length < 300; ++length) {
+         bytes = new byte[length];
+         random.nextBytes(bytes);
+         text = Base91.encode(bytes);
+         assertArrayEquals("length " + length, bytes, Base91.decode(text));
+      }
+   }
+
+   @Test
+   public void testAllValues() {
+      byte[] bytes;
+
+      bytes = new byte[256];
+      for (int i = 0; i < bytes.length; ++i) {
+         bytes[i] = (byte) i;
+      }
+      assertArrayEquals(bytes, Base91.decode(Base91.encode(bytes)));
+
+      Arrays.fill(bytes, (byte) 0);
+      assertArrayEquals(bytes, Base91.decode(Base91.encode(bytes)));
+      Arrays.fill(bytes, (byte) 0xff);
+      assertArrayEquals(bytes, Base91.decode(Base91.encode(bytes)));
+   }
+
+   @Test
+   public void testSafeAlphabet() {
+      Random random;
+      byte[] bytes;
+      String text;
+      char c;
+
+      random = new Random(13);
+      bytes = new byte[4096];
+      random.nextBytes(bytes);
+      text = Base91.encode(bytes);
+      for (int i = 0; i < text.length(); ++i) {
+         c = text.charAt(i);
+         assertTrue("character " + (int) c, c > ' ' && c < 127 && c != '|' && c != '"');
+      }
+      assertTrue(text.length() <= bytes.length * 16 / 13 + 2);
+   }
+
+   @Test
+   public void testAppendAndRegion() {
+      StringBuilder text;
+      byte[] bytes;
+      byte[] result;
+      int length;
+
+      bytes = "Base91 in the middle of a message".getBytes(StandardCharsets.US_ASCII);
+      text = new StringBuilder("<birch3>");
+      Base91.encode(bytes, 6, text);
+      text.append(" tail");
+
+      result = new byte[text.length()];
+      length = Base91.decode(text, 8, text.length() - 5, result);
+      assertEquals(6, length);
+      assertEquals("Base91", new String(result, 0, length, StandardCharsets.US_ASCII));
+   }
+
+   @Test
+   public void testSkipsForeignCharacters() {
+      byte[] bytes;
+      String text;
+
+      bytes = "hello".getBytes(StandardCharsets.US_ASCII);
+      text = Base91.encode(bytes);
+      assertArrayEquals(bytes, Base91.decode(" " + text.substring(0, 2) + "\r\n" + text.substring(2) + " "));
+   }
+}
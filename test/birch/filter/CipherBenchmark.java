@@ -0,0 +1,104 @@
+/*
+ * CipherBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.Filter;
+
+import java.security.GeneralSecurityException;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Messages per second encrypted and decrypted by {@link EncryptionFilter} in
+ * the format {@link EncryptionFilter#PREFIX}, and the cipher of one message
+ * with a Cipher looked up for every message as before and with one kept.
+ *
+ * @author Beselius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark {
+
+   @Param({ "AES", "Blowfish", "DES" })
+   public String algorithm;
+
+   private Filter filter;
+   private String received;
+   private SecretKeySpec key;
+   private Cipher cipher;
+   private byte[] iv;
+   private final byte[] text = "a short line of a busy channel".getBytes();
+
+   @Setup
+   public void setup() throws GeneralSecurityException {
+      byte[] bytes;
+
+      bytes = new byte["DES".equals(algorithm) ? 8 : 16];
+      for (int i = 0; i < bytes.length; ++i) {
+         bytes[i] = (byte) (31 * i + 7);
+      }
+      filter = new EncryptionFilter(Filter.nullObject,
+              new EncryptionFilterTest.Config().target("#channel",
+                      algorithm + ":" + new String(Base64.encodeBase64(bytes))));
+      received = ":alice!u@h " + filter.send("PRIVMSG #channel :" + new String(text));
+
+      key = new SecretKeySpec(bytes, algorithm);
+      cipher = Cipher.getInstance(algorithm + EncryptionFilter.DEFAULT_CIPHER_MODE);
+      iv = new byte[cipher.getBlockSize()];
+   }
+
+   @Benchmark
+   public String send() {
+      return filter.send("PRIVMSG #channel :a short line of a busy channel");
+   }
+
+   @Benchmark
+   public String receive() {
+      return filter.receive(received);
+   }
+
+   @Benchmark
+   public byte[] cipherLookedUp() throws GeneralSecurityException {
+      Cipher lookedUp;
+
+      lookedUp = Cipher.getInstance(algorithm + EncryptionFilter.DEFAULT_CIPHER_MODE);
+      lookedUp.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+      return lookedUp.doFinal(text);
+   }
+
+   @Benchmark
+   public byte[] cipherKept() throws GeneralSecurityException {
+      cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+      return cipher.doFinal(text);
+   }
+}
@@ -0,0 +1,184 @@
+/*
+ * EncryptionFilterTest.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.Filter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Beselius
+ */
+public class EncryptionFilterTest {
+
+   private static final String KEY_A = "MDEyMzQ1Njc4OWFiY2RlZg==";
+   private static final String KEY_B = "ZmVkY2JhOTg3NjU0MzIxMA==";
+
+   static class Config implements EncryptionFilter.Config {
+
+      private final Map<String, String> targets = new HashMap<String, String>();
+      private final Map<String, String> properties = new HashMap<String, String>();
+
+      public Config target(String target, String key) {
+         targets.put(target, key);
+         return this;
+      }
+
+      public Config property(String name, String value) {
+         properties.put(name, value);
+         return this;
+      }
+
+      public Map<String, String> getTargets() {
+         return targets;
+      }
+
+      public Map<String, Set<String>> getKeyMap() {
+         return new HashMap<String, Set<String>>();
+      }
+
+      public Map<String, String> getProperties() {
+         return properties;
+      }
+   }
+
+   private static boolean encrypts(Filter filter, String target) {
+      String line;
+
+      line = "PRIVMSG " + target + " :hello";
+      return !filter.send(line).equals(line);
+   }
+
+   /**
+    * @return the text of a message to the target sent by one filter and
+    * received by the other.
+    */
+   private static String roundTrip(Filter sender, Filter receiver, String target) {
+      return roundTrip(sender, receiver, target, "hello");
+   }
+
+   private static String roundTrip(Filter sender, Filter receiver, String target, String text) {
+      String line;
+
+      line = sender.send("PRIVMSG " + target + " :" + text);
+      line = receiver.receive(":alice!u@h " + line);
+      return line.substring(line.indexOf(" :") + 2);
+   }
+
+   @Test
+   public void testExactTargets() {
+      Filter filter;
+
+      filter = new EncryptionFilter(Filter.nullObject, new Config().target("#c", KEY_A).target("bob", KEY_A));
+      assertTrue(encrypts(filter, "#c"));
+      assertTrue(encrypts(filter, "bob"));
+      assertFalse(encrypts(filter, "#cc"));
+      assertFalse(encrypts(filter, "bobby"));
+      assertEquals("hello", roundTrip(filter, filter, "#c"));
+   }
+
+   @Test
+   public void testPatterns() {
+      Filter filter;
+
+      filter = new EncryptionFilter(Filter.nullObject,
+              new Config().target("#c", KEY_A).target("#re.*", KEY_A).target("(?i)#case", KEY_A).target("#[", KEY_A));
+      assertTrue(encrypts(filter, "#re"));
+      assertTrue(encrypts(filter, "#regex"));
+      assertFalse(encrypts(filter, "x#re"));
+      assertTrue(encrypts(filter, "#CaSe"));
+      assertFalse(encrypts(filter, "#cases"));
+      // no regular expression, compared literally
+      assertTrue(encrypts(filter, "#["));
+      assertFalse(encrypts(filter, "#"));
+   }
+
+   @Test
+   public void testKeyOfPattern() {
+      Filter sender;
+
+      sender = new EncryptionFilter(Filter.nullObject,
+              new Config().target("#a.*", KEY_A).target("#b(x|y)*", KEY_B).target("#c+", KEY_A));
+      assertEquals("hello", roundTrip(sender,
+              new EncryptionFilter(Filter.nullObject, new Config().target("#a1", KEY_A)), "#a1"));
+      assertEquals("hello", roundTrip(sender,
+              new EncryptionFilter(Filter.nullObject, new Config().target("#bxy", KEY_B)), "#bxy"));
+      assertEquals("hello", roundTrip(sender,
+              new EncryptionFilter(Filter.nullObject, new Config().target("#cc", KEY_A)), "#cc"));
+   }
+
+   @Test
+   public void testBackreferences() {
+      Filter filter;
+
+      filter = new EncryptionFilter(Filter.nullObject,
+              new Config().target("#a(.)", KEY_A).target("#(\\w)\\1", KEY_B).target("#(?<x>\\d)\\k<x>", KEY_A));
+      assertTrue(encrypts(filter, "#ab"));
+      assertTrue(encrypts(filter, "#zz"));
+      assertFalse(encrypts(filter, "#zy"));
+      assertTrue(encrypts(filter, "#11"));
+      assertFalse(encrypts(filter, "#12"));
+      assertEquals("hello", roundTrip(filter,
+              new EncryptionFilter(Filter.nullObject, new Config().target("#zz", KEY_B)), "#zz"));
+   }
+
+   @Test
+   public void testSameGroupNames() {
+      Filter filter;
+
+      filter = new EncryptionFilter(Filter.nullObject,
+              new Config().target("#(?<n>x)1", KEY_A).target("#(?<n>y)2", KEY_A));
+      assertTrue(encrypts(filter, "#x1"));
+      assertTrue(encrypts(filter, "#y2"));
+      assertFalse(encrypts(filter, "#x2"));
+   }
+
+   @Test
+   public void testClose() {
+      EncryptionFilter sender;
+      EncryptionFilter receiver;
+      Config config;
+      String text;
+      int compressed;
+
+      config = new Config().target("#c", KEY_A).property("version", "2").property("compress", "true");
+      sender = new EncryptionFilter(Filter.nullObject, config);
+      receiver = new EncryptionFilter(Filter.nullObject, config);
+      text = "what's that? I think it's the channel server, don't know why it's not there";
+      compressed = sender.send("PRIVMSG #c :" + text).length();
+      assertEquals(text, roundTrip(sender, receiver, "#c", text));
+
+      // sent without compression once closed
+      sender.close();
+      sender.close();
+      assertTrue(sender.send("PRIVMSG #c :" + text).length() > compressed);
+      assertEquals(text, roundTrip(sender, receiver, "#c", text));
+
+      receiver.close();
+      assertEquals(text, roundTrip(sender, receiver, "#c", text));
+   }
+}
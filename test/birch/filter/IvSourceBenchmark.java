@@ -0,0 +1,99 @@
+/*
+ * IvSourceBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.Filter;
+
+import java.security.SecureRandom;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * 64 threads sending encrypted messages at once, and drawing IVs from the
+ * striped sources and from one shared SecureRandom.
+ *
+ * @author Beselius
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class IvSourceBenchmark {
+
+   @State(Scope.Benchmark)
+   public static class Shared {
+
+      public final SecureRandom random = new SecureRandom();
+   }
+
+   @State(Scope.Thread)
+   public static class Sender {
+
+      public final byte[] iv = new byte[16];
+      public Filter filter;
+
+      @Setup
+      public void setup() {
+         final Map<String, String> targets;
+
+         targets = new HashMap<String, String>();
+         targets.put("#channel", "MDEyMzQ1Njc4OWFiY2RlZg==");
+         filter = new EncryptionFilter(Filter.nullObject, new EncryptionFilter.Config() {
+
+            public Map<String, String> getTargets() {
+               return targets;
+            }
+
+            public Map<String, Set<String>> getKeyMap() {
+               return new HashMap<String, Set<String>>();
+            }
+
+            public Map<String, String> getProperties() {
+               return new HashMap<String, String>();
+            }
+         });
+      }
+   }
+
+   @Benchmark
+   public String send(Sender sender) {
+      return sender.filter.send("PRIVMSG #channel :a short line of a busy channel");
+   }
+
+   @Benchmark
+   public byte[] stripedIv(Sender sender) {
+      EncryptionFilter.IvSource.get().next(sender.iv, sender.iv.length);
+      return sender.iv;
+   }
+
+   @Benchmark
+   public byte[] sharedIv(Shared shared, Sender sender) {
+      shared.random.nextBytes(sender.iv);
+      return sender.iv;
+   }
+}
@@ -0,0 +1,89 @@
+/*
+ * LinebreakFilterBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.Filter;
+import birch.LineSink;
+
+import java.nio.charset.Charset;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Chops a message of about 2000 characters into lines by their length in
+ * bytes.
+ *
+ * @author Beselius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinebreakFilterBenchmark {
+
+   @Param({ "ascii", "mixed", "cjk" })
+   public String text;
+
+   @Param({ "UTF-8", "Shift_JIS" })
+   public String charset;
+
+   private LinebreakFilter filter;
+   private String message;
+   private Blackhole blackhole;
+
+   private final LineSink sink = new LineSink() {
+
+      public void line(String line) {
+         blackhole.consume(line);
+      }
+   };
+
+   @Setup
+   public void setup() {
+      StringBuilder words;
+      String word;
+
+      if ("ascii".equals(text)) {
+         word = "a line of plain text ";
+      } else if ("mixed".equals(text)) {
+         word = "text 漢字 and かな mixed ";
+      } else {
+         word = "漢字とかなのテキスト。";
+      }
+      words = new StringBuilder("PRIVMSG #channel :");
+      while (words.length() < 2000) {
+         words.append(word);
+      }
+      message = words.toString();
+      filter = new LinebreakFilter(Filter.nullObject, Charset.forName(charset));
+   }
+
+   @Benchmark
+   public void send(Blackhole blackhole) {
+      this.blackhole = blackhole;
+      filter.send(message, sink);
+   }
+}
@@ -0,0 +1,168 @@
+/*
+ * LinebreakFilterTest.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.Filter;
+import birch.LineSink;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Beselius
+ */
+public class LinebreakFilterTest {
+
+   private static final String HEAD = "PRIVMSG #channel :";
+
+   /** Collects the lines handed on. */
+   private static class Lines implements LineSink {
+
+      private final List<String> lines = new ArrayList<String>();
+
+      public void line(String line) {
+         lines.add(line);
+      }
+   }
+
+   private static String repeat(String text, int count) {
+      StringBuilder result;
+
+      result = new StringBuilder();
+      for (int i = 0; i < count; ++i) {
+         result.append(text);
+      }
+
+      return result.toString();
+   }
+
+   private static LinebreakFilter newFilter(int maxLineLength, Charset charset) {
+      return new LinebreakFilter(Filter.nullObject, maxLineLength, charset,
+              LinebreakFilter.DEFAULT_TIME_TO_LIVE, LinebreakFilter.DEFAULT_MAX_FRAGMENTS,
+              new LinebreakFilter.Budget(LinebreakFilter.DEFAULT_BUDGET));
+   }
+
+   /**
+    * Chop the text and check that every line fits and the text is whole.
+    * @return the lines.
+    */
+   private static List<String> chop(int maxLineLength, Charset charset, String text) {
+      Lines result;
+      StringBuilder joined;
+      String line;
+
+      result = new Lines();
+      newFilter(maxLineLength, charset).send(HEAD + text, result);
+
+      joined = new StringBuilder();
+      for (int i = 0; i < result.lines.size(); ++i) {
+         line = result.lines.get(i);
+         assertTrue(line, line.getBytes(charset).length <= maxLineLength);
+         assertTrue(line, line.startsWith(HEAD));
+         assertFalse(line, Character.isHighSurrogate(line.charAt(line.length() - 1)));
+         if (i < result.lines.size() - 1) {
+            assertTrue(line, line.startsWith(LinebreakFilter.LINEBREAK_INDICATOR, HEAD.length()));
+            // full but for less than a character
+            assertTrue(line, line.getBytes(charset).length > maxLineLength - 4);
+            joined.append(line, HEAD.length() + LinebreakFilter.LINEBREAK_INDICATOR.length(), line.length());
+         } else {
+            joined.append(line, HEAD.length(), line.length());
+         }
+      }
+      assertEquals(text, joined.toString());
+
+      return result.lines;
+   }
+
+   @Test
+   public void testShortMessage() {
+      assertEquals(1, chop(100, StandardCharsets.UTF_8, "hello").size());
+      assertEquals(1, chop(100, StandardCharsets.UTF_8, repeat("x", 100 - HEAD.length())).size());
+      assertEquals(2, chop(100, StandardCharsets.UTF_8, repeat("x", 101 - HEAD.length())).size());
+   }
+
+   @Test
+   public void testAscii() {
+      // 100 - 18 bytes of the head - 9 of the mark for the text
+      assertEquals(7, chop(100, StandardCharsets.UTF_8, repeat("0123456789", 50)).size());
+   }
+
+   @Test
+   public void testMultiByte() {
+      List<String> lines;
+
+      // 3 bytes each in UTF-8, a line holds less than a third of the characters
+      lines = chop(100, StandardCharsets.UTF_8, repeat("漢字テキスト", 40));
+      assertTrue(lines.size() > 240 * 3 / 100);
+      chop(100, StandardCharsets.UTF_8, repeat("ascii 混合 text äöü ", 30));
+   }
+
+   @Test
+   public void testSurrogatePairs() {
+      chop(100, StandardCharsets.UTF_8, repeat("a😀", 100));
+      chop(101, StandardCharsets.UTF_8, repeat("😀", 100));
+   }
+
+   @Test
+   public void testOtherCharsets() {
+      chop(100, StandardCharsets.ISO_8859_1, repeat("äöü text ", 40));
+      chop(100, Charset.forName("Shift_JIS"), repeat("漢字 and テキスト ", 30));
+      chop(100, StandardCharsets.UTF_16BE, repeat("abc", 100));
+   }
+
+   @Test
+   public void testOtherCommands() {
+      Lines lines;
+      String message;
+
+      lines = new Lines();
+      message = "NOTICE #channel :" + repeat("x", 300);
+      newFilter(100, StandardCharsets.UTF_8).send(message, lines);
+      assertEquals(1, lines.lines.size());
+      assertSame(message, lines.lines.get(0));
+   }
+
+   @Test
+   public void testJoin() {
+      LinebreakFilter filter;
+      Lines lines;
+      Lines received;
+      String text;
+
+      text = repeat("long text 長いテキスト ", 40);
+      lines = new Lines();
+      received = new Lines();
+      filter = newFilter(120, StandardCharsets.UTF_8);
+      filter.send(HEAD + text, lines);
+      for (String line : lines.lines) {
+         filter.receive(":nick!user@host " + line, received);
+      }
+      assertEquals(1, received.lines.size());
+      assertEquals(":nick!user@host " + HEAD + text, received.lines.get(0));
+   }
+}
@@ -0,0 +1,86 @@
+/*
+ * MessageFormatBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.Filter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Messages per second sent and received through {@link EncryptionFilter} in
+ * the formats {@link EncryptionFilter#PREFIX} (version 1),
+ * {@link EncryptionFilter#PREFIX2} (2) and {@link EncryptionFilter#PREFIX3}
+ * (3). The length of a sent message is printed after the run.
+ *
+ * @author Beselius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFormatBenchmark {
+
+   @Param({ "1", "2", "3" })
+   public String version;
+
+   @Param({ "32", "200" })
+   public int length;
+
+   private Filter filter;
+   private String message;
+   private String received;
+
+   @Setup
+   public void setup() {
+      StringBuilder text;
+
+      text = new StringBuilder("PRIVMSG #channel :");
+      while (text.length() < 18 + length) {
+         text.append("a line of a busy channel ");
+      }
+      text.setLength(18 + length);
+      message = text.toString();
+      filter = new EncryptionFilter(Filter.nullObject, new EncryptionFilterTest.Config()
+              .target("#channel", "MDEyMzQ1Njc4OWFiY2RlZg==").property("version", version));
+      received = ":alice!u@h " + filter.send(message);
+   }
+
+   @TearDown
+   public void printLength() {
+      System.out.println();
+      System.out.println("version " + version + ", " + length + " characters: "
+              + filter.send(message).length() + " characters sent");
+   }
+
+   @Benchmark
+   public String send() {
+      return filter.send(message);
+   }
+
+   @Benchmark
+   public String receive() {
+      return filter.receive(received);
+   }
+}
@@ -0,0 +1,159 @@
+/*
+ * OTPEncryptorTest.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.filter.EncryptionFilter.OTPEncryptor;
+import birch.filter.EncryptionFilter.OTPEncryptor.Time;
+
+import java.io.IOException;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the OTP interval with the loop which walked the calendar from the
+ * start date.
+ *
+ * @author Beselius
+ */
+public class OTPEncryptorTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private TimeZone zone;
+
+   @Before
+   public void setUp() {
+      zone = TimeZone.getDefault();
+      // with daylight saving time
+      TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+   }
+
+   @After
+   public void tearDown() {
+      TimeZone.setDefault(zone);
+   }
+
+   /**
+    * @return the interval as it was computed before, one calendar step per
+    * interval between the start and the time.
+    */
+   static int walkFromStart(Date start, Time interval, Date time) {
+      int result = 0;
+      Calendar calendar;
+      Date marker;
+
+      if (!start.equals(time)) {
+         calendar = Calendar.getInstance();
+         if (start.before(time)) {
+            calendar.setTime(start);
+            marker = time;
+         } else {
+            calendar.setTime(time);
+            marker = start;
+         }
+         while (calendar.getTime().before(marker)) {
+            calendar.add(Calendar.MONTH, interval.getMonths());
+            calendar.add(Calendar.DAY_OF_MONTH, interval.getDays());
+            calendar.add(Calendar.HOUR, interval.getHours());
+            calendar.add(Calendar.MINUTE, interval.getMinutes());
+            calendar.add(Calendar.SECOND, interval.getSeconds());
+            ++result;
+         }
+      }
+
+      return result;
+   }
+
+   private OTPEncryptor newEncryptor(Date start, Time interval) throws IOException {
+      return new OTPEncryptor(folder.newFile(), "AES", 16, start, interval, 16);
+   }
+
+   private void compare(Time interval, long range, int count) throws IOException {
+      OTPEncryptor encryptor;
+      Random random;
+      Date start;
+      Date time;
+
+      start = new GregorianCalendar(2009, Calendar.MARCH, 14, 12, 30, 15).getTime();
+      encryptor = newEncryptor(start, interval);
+      random = new Random(count);
+
+      assertEquals(0, encryptor.getInterval(start));
+      for (int i = 0; i < count; ++i) {
+         time = new Date(start.getTime() + (long) ((random.nextDouble() * 2 - 1) * range));
+         assertEquals(time.toString(), walkFromStart(start, interval, time), encryptor.getInterval(time));
+      }
+
+      // growing times continue the walk of the previous call
+      time = start;
+      for (int i = 0; i < count; ++i) {
+         time = new Date(time.getTime() + (long) (random.nextDouble() * range / count));
+         assertEquals(time.toString(), walkFromStart(start, interval, time), encryptor.getInterval(time));
+      }
+   }
+
+   @Test
+   public void testFixedLength() throws IOException {
+      compare(new Time(0, 0, 0, 1, 0), 30 * 86400000L, 200);
+      compare(new Time(0, 0, 0, 1, 30), 30 * 86400000L, 200);
+      compare(new Time(0, 0, 2, 0, 0), 3 * 365 * 86400000L, 200);
+   }
+
+   @Test
+   public void testCalendar() throws IOException {
+      compare(new Time(0, 1, 0, 0, 0), 2 * 365 * 86400000L, 300);
+      compare(new Time(1, 0, 0, 0, 0), 5 * 365 * 86400000L, 300);
+      compare(new Time(1, 2, 3, 0, 0), 5 * 365 * 86400000L, 300);
+   }
+
+   @Test
+   public void testIntervalBoundary() throws IOException {
+      OTPEncryptor encryptor;
+      Date start;
+
+      start = new Date(1000000000000L);
+      encryptor = newEncryptor(start, new Time(0, 0, 0, 1, 0));
+      assertEquals(1, encryptor.getInterval(new Date(start.getTime() + 1)));
+      assertEquals(1, encryptor.getInterval(new Date(start.getTime() + 60000)));
+      assertEquals(2, encryptor.getInterval(new Date(start.getTime() + 60001)));
+      assertEquals(1, encryptor.getInterval(new Date(start.getTime() - 60000)));
+   }
+
+   @Test
+   public void testZeroInterval() throws IOException {
+      Date start;
+
+      start = new Date(1000000000000L);
+      assertEquals(0, newEncryptor(start, new Time()).getInterval(new Date(start.getTime() + 60000)));
+   }
+}
@@ -0,0 +1,90 @@
+/*
+ * OTPIntervalBenchmark.java
+ *
+ * Copyright (C) 2009 Beselius
+ *
+ * This file is part of Birch.
+ *
+ * Birch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Birch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Birch.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package birch.filter;
+
+import birch.filter.EncryptionFilter.OTPEncryptor;
+import birch.filter.EncryptionFilter.OTPEncryptor.Time;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The OTP interval of a time some days after the start date, computed by
+ * OTPEncryptor and by the calendar walk it replaced.
+ *
+ * @author Beselius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OTPIntervalBenchmark {
+
+   @Param({ "1", "365", "3650" })
+   public int days;
+
+   private File pad;
+   private Date start;
+   private Date time;
+   private Time hour;
+   private OTPEncryptor hours;
+   private OTPEncryptor calendar;
+
+   @Setup
+   public void setup() throws IOException {
+      pad = File.createTempFile("pad", null);
+      start = new Date(1000000000000L);
+      time = new Date(start.getTime() + days * 86400000L - 1);
+      hour = new Time(0, 0, 1, 0, 0);
+      hours = new OTPEncryptor(pad, "AES", 16, start, hour, 16);
+      calendar = new OTPEncryptor(pad, "AES", 16, start, new Time(0, 1, 0, 0, 0), 16);
+   }
+
+   @TearDown
+   public void tearDown() {
+      pad.delete();
+   }
+
+   /** An interval of one hour. */
+   @Benchmark
+   public int fixedLength() {
+      return hours.getInterval(time);
+   }
+
+   /** An interval of one day, walked on from the previous call. */
+   @Benchmark
+   public int calendar() {
+      return calendar.getInterval(time);
+   }
+
+   /** An interval of one hour, walked from the start date. */
+   @Benchmark
+   public int walkFromStart() {
+      return OTPEncryptorTest.walkFromStart(start, hour, time);
+   }
+}